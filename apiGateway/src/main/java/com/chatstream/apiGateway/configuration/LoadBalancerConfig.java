@@ -0,0 +1,11 @@
+package com.chatstream.apiGateway.configuration;
+
+import com.chatstream.apiGateway.loadbalancer.StreamAffinityLoadBalancerConfiguration;
+import org.springframework.cloud.loadbalancer.annotation.LoadBalancerClient;
+import org.springframework.context.annotation.Configuration;
+
+// Broker connections are routed by room; the other services keep the default round robin
+@Configuration
+@LoadBalancerClient(name = "messageBroker", configuration = StreamAffinityLoadBalancerConfiguration.class)
+public class LoadBalancerConfig {
+}
@@ -0,0 +1,51 @@
+package com.chatstream.apiGateway.configuration;
+
+import com.chatstream.apiGateway.ratelimit.ThrottledWebSocketService;
+import com.chatstream.apiGateway.ratelimit.TokenBuckets;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.web.reactive.socket.server.RequestUpgradeStrategy;
+import org.springframework.web.reactive.socket.server.WebSocketService;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
+
+@Configuration
+public class RateLimitConfig {
+
+    @Value("${gateway_rate_limit_stripes:64}")
+    private int stripes;
+
+    @Value("${gateway_rate_limit_max_keys_per_stripe:4096}")
+    private int maxKeysPerStripe;
+
+    @Bean
+    public TokenBuckets userRequestBuckets(@Value("${gateway_rate_limit_user_capacity:100}") long capacity,
+                                           @Value("${gateway_rate_limit_user_per_second:20}") double perSecond) {
+        return new TokenBuckets("user", capacity, perSecond, stripes, maxKeysPerStripe);
+    }
+
+    @Bean
+    public TokenBuckets addressRequestBuckets(@Value("${gateway_rate_limit_ip_capacity:400}") long capacity,
+                                              @Value("${gateway_rate_limit_ip_per_second:100}") double perSecond) {
+        return new TokenBuckets("ip", capacity, perSecond, stripes, maxKeysPerStripe);
+    }
+
+    @Bean
+    public TokenBuckets websocketFrameBuckets(@Value("${gateway_ws_frame_capacity:100}") long capacity,
+                                              @Value("${gateway_ws_frames_per_second:50}") double perSecond) {
+        return new TokenBuckets("ws-frame", capacity, perSecond, stripes, maxKeysPerStripe);
+    }
+
+    // Takes the place of the gateway's own WebSocketService, which its WebSocket routing filter uses
+    @Bean
+    @Primary
+    public WebSocketService throttledWebSocketService(RequestUpgradeStrategy requestUpgradeStrategy,
+                                                      @Qualifier("websocketFrameBuckets") TokenBuckets frameBuckets,
+                                                      @Value("${gateway_ws_max_dropped_frames:500}") int maxDroppedFrames,
+                                                      @Value("${gateway_ws_drop_window_ms:60000}") long dropWindowMs) {
+        return new ThrottledWebSocketService(new HandshakeWebSocketService(requestUpgradeStrategy),
+                frameBuckets, maxDroppedFrames, dropWindowMs);
+    }
+}
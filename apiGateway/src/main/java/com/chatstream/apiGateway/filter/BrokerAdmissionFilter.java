@@ -0,0 +1,58 @@
+package com.chatstream.apiGateway.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.filter.ReactiveLoadBalancerClientFilter;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
+
+// Caps the WebSocket connections this gateway holds open to each broker instance. Runs right after the
+// load balancer picked the instance; an upgrade to a full one is answered 503 so the client backs off
+// instead of the broker taking on more sessions than it can serve. The gateway completes the exchange
+// when the WebSocket closes, which frees the slot.
+@Component
+public class BrokerAdmissionFilter implements GlobalFilter, Ordered {
+
+    private static final Logger log = LoggerFactory.getLogger(BrokerAdmissionFilter.class);
+
+    private final Map<String, AtomicInteger> connections = new ConcurrentHashMap<>();
+
+    @Value("${broker_max_websockets_per_instance:10000}")
+    private int maxConnections;
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        URI target = exchange.getAttribute(GATEWAY_REQUEST_URL_ATTR);
+        if (target == null || !"websocket".equalsIgnoreCase(exchange.getRequest().getHeaders().getUpgrade())) {
+            return chain.filter(exchange);
+        }
+
+        String instance = target.getHost() + ":" + target.getPort();
+        AtomicInteger open = connections.computeIfAbsent(instance, key -> new AtomicInteger());
+        if (open.incrementAndGet() > maxConnections) {
+            open.decrementAndGet();
+            log.warn("Rejected WebSocket upgrade to {}: {} connections open", instance, maxConnections);
+            exchange.getResponse().setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+            return exchange.getResponse().setComplete();
+        }
+        return chain.filter(exchange).doFinally(signal -> open.decrementAndGet());
+    }
+
+    @Override
+    public int getOrder() {
+        return ReactiveLoadBalancerClientFilter.LOAD_BALANCER_CLIENT_FILTER_ORDER + 1;
+    }
+}
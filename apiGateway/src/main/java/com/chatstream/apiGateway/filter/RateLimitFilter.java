@@ -0,0 +1,45 @@
+package com.chatstream.apiGateway.filter;
+
+import com.chatstream.apiGateway.ratelimit.ClientKeys;
+import com.chatstream.apiGateway.ratelimit.TokenBuckets;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+// Rejects requests over their user's or their address's rate with 429 before they are routed. A
+// WebSocket upgrade counts as one request here; its frames are limited by ThrottledWebSocketService.
+@Component
+public class RateLimitFilter implements GlobalFilter, Ordered {
+
+    private final TokenBuckets userBuckets;
+    private final TokenBuckets addressBuckets;
+
+    public RateLimitFilter(@Qualifier("userRequestBuckets") TokenBuckets userBuckets,
+                           @Qualifier("addressRequestBuckets") TokenBuckets addressBuckets) {
+        this.userBuckets = userBuckets;
+        this.addressBuckets = addressBuckets;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        String userId = ClientKeys.userOf(exchange.getRequest());
+        boolean allowed = addressBuckets.tryAcquire(ClientKeys.addressOf(exchange.getRequest()))
+                && (userId == null || userBuckets.tryAcquire(userId));
+        if (!allowed) {
+            exchange.getResponse().setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+            return exchange.getResponse().setComplete();
+        }
+        return chain.filter(exchange);
+    }
+
+    // Right after UserIdentityFilter
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE + 1;
+    }
+}
@@ -0,0 +1,67 @@
+package com.chatstream.apiGateway.filter;
+
+import com.chatstream.apiGateway.identity.UserTokens;
+import com.chatstream.apiGateway.ratelimit.ClientKeys;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+// Establishes who a request comes from before anything else looks at it. The user ID header is always
+// removed from what the client sent and only set again from a verified user token, so the services
+// behind the gateway (and the rate limits) can rely on it. Browsers cannot set headers on a WebSocket
+// upgrade, so the token may also come as the access_token query parameter. A request with an invalid
+// token is rejected with 401; one without a token goes on anonymously.
+@Component
+public class UserIdentityFilter implements GlobalFilter, Ordered {
+
+    private static final String BEARER = "Bearer ";
+
+    private final UserTokens userTokens;
+
+    public UserIdentityFilter(@Value("${gateway_user_token_secret:}") String secret) {
+        this.userTokens = new UserTokens(secret);
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        String token = tokenOf(request);
+        String userId = userTokens.verify(token, System.currentTimeMillis());
+        if (token != null && userId == null) {
+            exchange.getResponse().setStatusCode(HttpStatus.UNAUTHORIZED);
+            return exchange.getResponse().setComplete();
+        }
+
+        ServerHttpRequest verified = request.mutate()
+                .headers(headers -> {
+                    headers.remove(ClientKeys.USER_ID_HEADER);
+                    if (userId != null) {
+                        headers.set(ClientKeys.USER_ID_HEADER, userId);
+                    }
+                })
+                .build();
+        return chain.filter(exchange.mutate().request(verified).build());
+    }
+
+    private static String tokenOf(ServerHttpRequest request) {
+        String authorization = request.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        if (authorization != null && authorization.startsWith(BEARER)) {
+            return authorization.substring(BEARER.length()).trim();
+        }
+        String token = request.getQueryParams().getFirst("access_token");
+        return token == null || token.isEmpty() ? null : token;
+    }
+
+    // Ahead of the rate limits, which key on the verified user
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+}
@@ -0,0 +1,71 @@
+package com.chatstream.apiGateway.identity;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+// Signed user tokens: "<userId>.<expiry, epoch millis>.<signature>", where the signature is the unpadded
+// base64url HMAC-SHA256 of "<userId>.<expiry>" under a secret shared with whatever issues the tokens.
+// The user ID may itself contain dots, so the token is split from the right.
+public class UserTokens {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+
+    // Without a secret no token verifies, so every client is anonymous
+    public UserTokens(String secret) {
+        this.key = secret == null || secret.isEmpty()
+                ? null
+                : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    public String issue(String userId, long expiresAtMillis) {
+        if (key == null) {
+            throw new IllegalStateException("No user token secret configured");
+        }
+        String claims = userId + "." + expiresAtMillis;
+        return claims + "." + sign(claims);
+    }
+
+    // The user the token was issued to, or null if it is malformed, forged or expired
+    public String verify(String token, long nowMillis) {
+        if (key == null || token == null) {
+            return null;
+        }
+        int signatureStart = token.lastIndexOf('.');
+        int expiryStart = signatureStart > 0 ? token.lastIndexOf('.', signatureStart - 1) : -1;
+        if (expiryStart <= 0) {
+            return null;
+        }
+
+        String claims = token.substring(0, signatureStart);
+        byte[] expected = sign(claims).getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = token.substring(signatureStart + 1).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            return null;
+        }
+
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(token.substring(expiryStart + 1, signatureStart));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return nowMillis < expiresAt ? token.substring(0, expiryStart) : null;
+    }
+
+    private String sign(String claims) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            byte[] signature = mac.doFinal(claims.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign user token", e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.chatstream.apiGateway.loadbalancer;
+
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Consistent hash ring over the broker instances. Each instance is placed at several points, so adding or
+// removing one only moves the keys between it and its neighbours, about 1/n of them.
+final class HashRing {
+
+    private final long[] points;
+    private final ServiceInstance[] owners;
+    private final Set<String> members;
+    private final int size;
+
+    private HashRing(long[] points, ServiceInstance[] owners, Set<String> members) {
+        this.points = points;
+        this.owners = owners;
+        this.members = members;
+        this.size = members.size();
+    }
+
+    static HashRing of(List<ServiceInstance> instances, int virtualNodes) {
+        Set<String> members = new LinkedHashSet<>();
+        long[][] entries = new long[instances.size() * virtualNodes][];
+        int next = 0;
+        for (int i = 0; i < instances.size(); i++) {
+            String key = keyOf(instances.get(i));
+            if (!members.add(key)) {
+                continue;
+            }
+            for (int v = 0; v < virtualNodes; v++) {
+                entries[next++] = new long[]{hash(key + "#" + v), i};
+            }
+        }
+
+        long[][] sorted = Arrays.copyOf(entries, next);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a[0], b[0]));
+        long[] points = new long[next];
+        ServiceInstance[] owners = new ServiceInstance[next];
+        for (int p = 0; p < next; p++) {
+            points[p] = sorted[p][0];
+            owners[p] = instances.get((int) sorted[p][1]);
+        }
+        return new HashRing(points, owners, members);
+    }
+
+    static String keyOf(ServiceInstance instance) {
+        return instance.getInstanceId() != null
+                ? instance.getInstanceId()
+                : instance.getHost() + ":" + instance.getPort();
+    }
+
+    Set<String> members() {
+        return members;
+    }
+
+    // Distinct instances clockwise from the key's position, the first one being its owner
+    List<ServiceInstance> walk(String key) {
+        List<ServiceInstance> order = new ArrayList<>(size);
+        if (points.length == 0) {
+            return order;
+        }
+
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        Set<String> seen = new LinkedHashSet<>();
+        for (int p = 0; p < points.length && order.size() < size; p++) {
+            ServiceInstance owner = owners[(start + p) % points.length];
+            if (seen.add(keyOf(owner))) {
+                order.add(owner);
+            }
+        }
+        return order;
+    }
+
+    // FNV-1a followed by the murmur3 finalizer, which spreads similar keys (room names, "#n" suffixes)
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,155 @@
+package com.chatstream.apiGateway.loadbalancer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.CompletionContext;
+import org.springframework.cloud.client.loadbalancer.DefaultResponse;
+import org.springframework.cloud.client.loadbalancer.EmptyResponse;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerLifecycle;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.RequestDataContext;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.client.loadbalancer.ResponseData;
+import org.springframework.cloud.loadbalancer.core.NoopServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.core.ReactorServiceInstanceLoadBalancer;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sends every connection for a room to the same broker instance, so the room's stream is read and fanned
+// out on one node instead of on all of them. The room comes from the request's stream query parameter and
+// is placed on a consistent hash ring of the instances Eureka knows about.
+//
+// The ring is bounded by load: an instance already holding more than (1 + load_factor) times the average
+// of this gateway's open requests is skipped for the next one clockwise, so one very busy room cannot pile
+// up on a node. Requests without a room go to the least loaded instance. Loads are counted per gateway
+// from selection until the gateway reports the exchange complete, which for a WebSocket is when it closes.
+public class StreamAffinityLoadBalancer implements ReactorServiceInstanceLoadBalancer,
+        LoadBalancerLifecycle<RequestDataContext, ResponseData, ServiceInstance> {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamAffinityLoadBalancer.class);
+
+    private final ObjectProvider<ServiceInstanceListSupplier> supplierProvider;
+    private final String serviceId;
+    private final String keyParameter;
+    private final int virtualNodes;
+    private final double loadFactor;
+    private final Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+    private volatile HashRing ring = HashRing.of(List.of(), 1);
+
+    public StreamAffinityLoadBalancer(ObjectProvider<ServiceInstanceListSupplier> supplierProvider, String serviceId,
+                                      String keyParameter, int virtualNodes, double loadFactor) {
+        this.supplierProvider = supplierProvider;
+        this.serviceId = serviceId;
+        this.keyParameter = keyParameter;
+        this.virtualNodes = virtualNodes;
+        this.loadFactor = loadFactor;
+    }
+
+    @Override
+    public Mono<Response<ServiceInstance>> choose(Request request) {
+        ServiceInstanceListSupplier supplier = supplierProvider.getIfAvailable(NoopServiceInstanceListSupplier::new);
+        String key = affinityKey(request);
+        return supplier.get(request).next().map(instances -> choose(instances, key));
+    }
+
+    private Response<ServiceInstance> choose(List<ServiceInstance> instances, String key) {
+        if (instances.isEmpty()) {
+            log.warn("No instances available for {}", serviceId);
+            return new EmptyResponse();
+        }
+
+        HashRing current = ringOf(instances);
+        ServiceInstance chosen = key == null ? leastLoaded(instances) : boundedOwner(current, key);
+        loadOf(chosen).incrementAndGet();
+        return new DefaultResponse(chosen);
+    }
+
+    // First instance clockwise from the key that is under the capacity. Capacity is above the average
+    // load, so at least one instance always qualifies.
+    private ServiceInstance boundedOwner(HashRing current, String key) {
+        List<ServiceInstance> candidates = current.walk(key);
+        int total = 0;
+        for (ServiceInstance instance : candidates) {
+            total += loadOf(instance).get();
+        }
+        long capacity = (long) Math.ceil((1 + loadFactor) * (total + 1) / candidates.size());
+
+        for (ServiceInstance instance : candidates) {
+            if (loadOf(instance).get() < capacity) {
+                return instance;
+            }
+        }
+        return candidates.get(0);
+    }
+
+    private ServiceInstance leastLoaded(List<ServiceInstance> instances) {
+        ServiceInstance chosen = instances.get(0);
+        for (ServiceInstance instance : instances) {
+            if (loadOf(instance).get() < loadOf(chosen).get()) {
+                chosen = instance;
+            }
+        }
+        return chosen;
+    }
+
+    // Rebuilt only when the membership changes. Counts of instances that left are dropped, so one that
+    // comes back starts empty.
+    private HashRing ringOf(List<ServiceInstance> instances) {
+        HashRing current = ring;
+        if (current.members().size() == instances.size()
+                && instances.stream().allMatch(instance -> current.members().contains(HashRing.keyOf(instance)))) {
+            return current;
+        }
+
+        HashRing rebuilt = HashRing.of(instances, virtualNodes);
+        loads.keySet().retainAll(rebuilt.members());
+        ring = rebuilt;
+        log.info("Hash ring of {} rebuilt with {} instances", serviceId, rebuilt.members().size());
+        return rebuilt;
+    }
+
+    private String affinityKey(Request request) {
+        if (!(request.getContext() instanceof RequestDataContext context) || context.getClientRequest() == null) {
+            return null;
+        }
+        URI url = context.getClientRequest().getUrl();
+        if (url == null) {
+            return null;
+        }
+        String key = UriComponentsBuilder.fromUri(url).build().getQueryParams().getFirst(keyParameter);
+        return key == null || key.isEmpty() ? null : key;
+    }
+
+    private AtomicInteger loadOf(ServiceInstance instance) {
+        return loads.computeIfAbsent(HashRing.keyOf(instance), key -> new AtomicInteger());
+    }
+
+    @Override
+    public void onStart(Request<RequestDataContext> request) {
+    }
+
+    @Override
+    public void onStartRequest(Request<RequestDataContext> request, Response<ServiceInstance> lbResponse) {
+    }
+
+    @Override
+    public void onComplete(CompletionContext<ResponseData, ServiceInstance, RequestDataContext> completionContext) {
+        Response<ServiceInstance> response = completionContext.getLoadBalancerResponse();
+        if (response == null || !response.hasServer()) {
+            return;
+        }
+        AtomicInteger load = loads.get(HashRing.keyOf(response.getServer()));
+        if (load != null) {
+            load.updateAndGet(current -> Math.max(current - 1, 0));
+        }
+    }
+}
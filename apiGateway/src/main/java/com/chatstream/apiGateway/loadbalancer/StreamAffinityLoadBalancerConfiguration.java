@@ -0,0 +1,25 @@
+package com.chatstream.apiGateway.loadbalancer;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.support.LoadBalancerClientFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+
+// Load balancer of the messageBroker client. Not a @Configuration, so it is only picked up by the load
+// balancer context it is registered for; the bean is also the lifecycle that releases the counted load.
+public class StreamAffinityLoadBalancerConfiguration {
+
+    @Bean
+    public StreamAffinityLoadBalancer streamAffinityLoadBalancer(
+            Environment environment,
+            LoadBalancerClientFactory clientFactory,
+            @Value("${broker_affinity_key_parameter:stream}") String keyParameter,
+            @Value("${broker_affinity_virtual_nodes:160}") int virtualNodes,
+            @Value("${broker_affinity_load_factor:0.25}") double loadFactor) {
+        String serviceId = environment.getProperty(LoadBalancerClientFactory.PROPERTY_NAME);
+        return new StreamAffinityLoadBalancer(
+                clientFactory.getLazyProvider(serviceId, ServiceInstanceListSupplier.class),
+                serviceId, keyParameter, virtualNodes, loadFactor);
+    }
+}
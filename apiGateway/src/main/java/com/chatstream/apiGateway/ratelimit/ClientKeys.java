@@ -0,0 +1,34 @@
+package com.chatstream.apiGateway.ratelimit;
+
+import org.springframework.http.server.reactive.ServerHttpRequest;
+
+import java.net.InetSocketAddress;
+
+// Who a request is limited as. The user is the one the broker takes as sender: the user ID header, which
+// UserIdentityFilter sets from a verified token only. Every request is also limited by address.
+public final class ClientKeys {
+
+    public static final String USER_ID_HEADER = "X-User-Id";
+
+    private ClientKeys() {
+    }
+
+    public static String userOf(ServerHttpRequest request) {
+        String userId = request.getHeaders().getFirst(USER_ID_HEADER);
+        return userId == null || userId.isEmpty() ? null : userId;
+    }
+
+    public static String addressOf(ServerHttpRequest request) {
+        InetSocketAddress remote = request.getRemoteAddress();
+        if (remote == null) {
+            return "unknown";
+        }
+        return remote.getAddress() != null ? remote.getAddress().getHostAddress() : remote.getHostString();
+    }
+
+    // A user's frames share one bucket over all their connections; anonymous ones are limited by address
+    public static String userOrAddressOf(ServerHttpRequest request) {
+        String userId = userOf(request);
+        return userId != null ? "user:" + userId : "ip:" + addressOf(request);
+    }
+}
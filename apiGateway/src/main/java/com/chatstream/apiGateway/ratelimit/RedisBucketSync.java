@@ -0,0 +1,88 @@
+package com.chatstream.apiGateway.ratelimit;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+// Shares what each gateway took from its buckets through one Redis counter per key, so the limits hold
+// across gateway instances rather than per instance. Every bucket refills at the full rate and is charged
+// for what the others took, which keeps the combined rate at the configured one, a sync interval late.
+// Off by default: a single gateway needs no Redis, and a Redis outage only makes the limits local again.
+@Component
+public class RedisBucketSync {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisBucketSync.class);
+
+    // ARGV: tokens taken since the last sync, ttl. Returns what all gateways took while the key was live.
+    private static final RedisScript<Long> ADD_SCRIPT = RedisScript.of("""
+            local total = redis.call('INCRBY', KEYS[1], ARGV[1])
+            redis.call('PEXPIRE', KEYS[1], ARGV[2])
+            return total
+            """, Long.class);
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final List<TokenBuckets> buckets;
+    private Disposable sync;
+
+    @Value("${gateway_rate_limit_redis_sync:false}")
+    private boolean enabled;
+
+    @Value("${gateway_rate_limit_sync_interval_ms:500}")
+    private long intervalMs;
+
+    @Value("${gateway_rate_limit_key_ttl_ms:60000}")
+    private long keyTtlMs;
+
+    @Value("${gateway_rate_limit_key_prefix:chatstream:ratelimit}")
+    private String keyPrefix;
+
+    public RedisBucketSync(ReactiveStringRedisTemplate redisTemplate, List<TokenBuckets> buckets) {
+        this.redisTemplate = redisTemplate;
+        this.buckets = buckets;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        sync = Flux.interval(Duration.ofMillis(intervalMs))
+                .onBackpressureDrop()
+                .concatMap(tick -> Flux.fromIterable(buckets).concatMap(this::sync))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sync != null) {
+            sync.dispose();
+        }
+    }
+
+    private Mono<Void> sync(TokenBuckets bucketStore) {
+        Map<String, Long> taken = bucketStore.drainTaken();
+        return Flux.fromIterable(taken.entrySet())
+                .flatMap(entry -> redisTemplate.execute(ADD_SCRIPT,
+                                List.of(keyPrefix + ":" + bucketStore.getName() + ":" + entry.getKey()),
+                                List.of(String.valueOf(entry.getValue()), String.valueOf(keyTtlMs)))
+                        .next()
+                        .doOnNext(total -> bucketStore.applySynced(entry.getKey(), entry.getValue(), total)), 16)
+                .then()
+                .onErrorResume(error -> {
+                    log.warn("Syncing {} rate limits failed: {}", bucketStore.getName(), error.getMessage());
+                    return Mono.empty();
+                });
+    }
+}
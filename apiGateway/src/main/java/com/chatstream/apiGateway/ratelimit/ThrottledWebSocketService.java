@@ -0,0 +1,33 @@
+package com.chatstream.apiGateway.ratelimit;
+
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.server.WebSocketService;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+// The gateway's server side of proxied WebSockets. Publishes from the client are limited per user (or per
+// address for anonymous clients) before they are forwarded to the broker, so one client cannot flood a
+// broker's publish path.
+public class ThrottledWebSocketService implements WebSocketService {
+
+    private final WebSocketService delegate;
+    private final TokenBuckets frameBuckets;
+    private final int maxDroppedFrames;
+    private final long dropWindowMs;
+
+    public ThrottledWebSocketService(WebSocketService delegate, TokenBuckets frameBuckets, int maxDroppedFrames,
+                                     long dropWindowMs) {
+        this.delegate = delegate;
+        this.frameBuckets = frameBuckets;
+        this.maxDroppedFrames = maxDroppedFrames;
+        this.dropWindowMs = dropWindowMs;
+    }
+
+    @Override
+    public Mono<Void> handleRequest(ServerWebExchange exchange, WebSocketHandler handler) {
+        String key = ClientKeys.userOrAddressOf(exchange.getRequest());
+        return delegate.handleRequest(exchange, session ->
+                handler.handle(new ThrottledWebSocketSession(session, frameBuckets, key, maxDroppedFrames,
+                        dropWindowMs)));
+    }
+}
@@ -0,0 +1,245 @@
+package com.chatstream.apiGateway.ratelimit;
+
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.HandshakeInfo;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Function;
+
+// Client session whose publishes are dropped once the client's bucket is empty. Only frames that publish
+// to a stream (PUBLISH, SEND, PUBLISH_BATCH, text or binary, told apart by their first bytes) take tokens,
+// one per message, so a batch is dropped whole unless the bucket covers all of it; subscribing,
+// unsubscribing and control frames are never limited. Each dropped publish is answered with an
+// ERROR reply in the broker's protocol, so the client knows to retry later. Dropped frames are released by
+// the server as unread ones are; a client with maxDroppedFrames drops within one window is closed with a
+// policy violation.
+class ThrottledWebSocketSession implements WebSocketSession {
+
+    private static final Logger log = LoggerFactory.getLogger(ThrottledWebSocketSession.class);
+
+    static final String REJECTED_REPLY = "Rate limit exceeded";
+
+    private static final String[] TEXT_PUBLISH_COMMANDS = {"PUBLISH:", "SEND:"};
+    private static final String TEXT_BATCH_COMMAND = "PUBLISH_BATCH:";
+    // PUBLISH and SEND opcodes of the broker's binary protocol
+    private static final byte[] BINARY_PUBLISH_OPCODES = {0x04, 0x05};
+    private static final byte BINARY_BATCH_OPCODE = 0x01;
+    private static final byte BINARY_ERROR_OPCODE = 0x12;
+
+    private final WebSocketSession delegate;
+    private final TokenBuckets frameBuckets;
+    private final String key;
+    private final int maxDroppedFrames;
+    private final long dropWindowNanos;
+    // Error replies to dropped publishes, sent along with what the broker sends
+    private final Sinks.Many<WebSocketMessage> rejections = Sinks.many().unicast().onBackpressureBuffer();
+    private long windowStart = System.nanoTime();
+    private int dropped;
+
+    ThrottledWebSocketSession(WebSocketSession delegate, TokenBuckets frameBuckets, String key,
+                              int maxDroppedFrames, long dropWindowMs) {
+        this.delegate = delegate;
+        this.frameBuckets = frameBuckets;
+        this.key = key;
+        this.maxDroppedFrames = maxDroppedFrames;
+        this.dropWindowNanos = dropWindowMs * 1_000_000;
+    }
+
+    @Override
+    public Flux<WebSocketMessage> receive() {
+        return delegate.receive().filter(this::admit);
+    }
+
+    private boolean admit(WebSocketMessage message) {
+        int cost = costOf(message);
+        if (cost == 0 || frameBuckets.tryAcquire(key, cost, System.nanoTime())) {
+            return true;
+        }
+
+        rejections.tryEmitNext(rejectionOf(message));
+        long now = System.nanoTime();
+        if (now - windowStart >= dropWindowNanos) {
+            windowStart = now;
+            dropped = 0;
+        }
+        if (++dropped == maxDroppedFrames) {
+            log.warn("Closing WebSocket {} of {}: {} frames over its rate", getId(), key, dropped);
+            delegate.close(CloseStatus.POLICY_VIOLATION.withReason("Rate limit exceeded")).subscribe();
+        }
+        return false;
+    }
+
+    // Tokens the frame takes: the messages it publishes, 0 for anything else. Reads the frame in place;
+    // batches are counted the way the broker splits them, without decoding the messages.
+    static int costOf(WebSocketMessage message) {
+        DataBuffer payload = message.getPayload();
+        int start = payload.readPosition();
+        int length = payload.readableByteCount();
+        if (message.getType() == WebSocketMessage.Type.BINARY) {
+            if (length == 0) {
+                return 0;
+            }
+            byte opcode = payload.getByte(start);
+            if (opcode == BINARY_BATCH_OPCODE) {
+                return binaryBatchSize(payload, start, start + length);
+            }
+            for (byte publishOpcode : BINARY_PUBLISH_OPCODES) {
+                if (opcode == publishOpcode) {
+                    return 1;
+                }
+            }
+            return 0;
+        }
+        if (message.getType() != WebSocketMessage.Type.TEXT) {
+            return 0;
+        }
+
+        if (length >= TEXT_BATCH_COMMAND.length() && startsWith(payload, start, TEXT_BATCH_COMMAND)) {
+            return textBatchSize(payload, start + TEXT_BATCH_COMMAND.length(), start + length);
+        }
+        for (String command : TEXT_PUBLISH_COMMANDS) {
+            if (length >= command.length() && startsWith(payload, start, command)) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    // PUBLISH_BATCH:<stream>:<message>\n<message>\n..., empty lines skipped. At least 1, so a batch the
+    // broker will reject still costs a token.
+    private static int textBatchSize(DataBuffer payload, int from, int end) {
+        int position = from;
+        while (position < end && payload.getByte(position) != ':') {
+            position++;
+        }
+        int messages = 0;
+        boolean inMessage = false;
+        for (position++; position < end; position++) {
+            if (payload.getByte(position) == '\n') {
+                inMessage = false;
+            } else if (!inMessage) {
+                inMessage = true;
+                messages++;
+            }
+        }
+        return Math.max(messages, 1);
+    }
+
+    // [0x01][stream length: u16][stream] then per message [length: u32][message]; a truncated last
+    // message still counts
+    private static int binaryBatchSize(DataBuffer payload, int start, int end) {
+        if (end - start < 3) {
+            return 1;
+        }
+        long position = start + 3 + (((payload.getByte(start + 1) & 0xFF) << 8) | (payload.getByte(start + 2) & 0xFF));
+        int messages = 0;
+        while (position < end) {
+            messages++;
+            if (position + 4 > end) {
+                break;
+            }
+            int index = (int) position;
+            long messageLength = ((payload.getByte(index) & 0xFFL) << 24) | ((payload.getByte(index + 1) & 0xFF) << 16)
+                    | ((payload.getByte(index + 2) & 0xFF) << 8) | (payload.getByte(index + 3) & 0xFF);
+            position += 4 + messageLength;
+        }
+        return Math.max(messages, 1);
+    }
+
+    private static boolean startsWith(DataBuffer payload, int start, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (payload.getByte(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // SUCCESS/ERROR replies as the broker encodes them: "ERROR:<text>", or [0x12][length: u32][text]
+    private WebSocketMessage rejectionOf(WebSocketMessage message) {
+        if (message.getType() == WebSocketMessage.Type.TEXT) {
+            return delegate.textMessage("ERROR:" + REJECTED_REPLY);
+        }
+        byte[] text = REJECTED_REPLY.getBytes(StandardCharsets.UTF_8);
+        byte[] reply = ByteBuffer.allocate(1 + 4 + text.length)
+                .put(BINARY_ERROR_OPCODE)
+                .putInt(text.length)
+                .put(text)
+                .array();
+        return delegate.binaryMessage(factory -> factory.wrap(reply));
+    }
+
+    @Override
+    public String getId() {
+        return delegate.getId();
+    }
+
+    @Override
+    public HandshakeInfo getHandshakeInfo() {
+        return delegate.getHandshakeInfo();
+    }
+
+    @Override
+    public DataBufferFactory bufferFactory() {
+        return delegate.bufferFactory();
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return delegate.getAttributes();
+    }
+
+    @Override
+    public Mono<Void> send(Publisher<WebSocketMessage> messages) {
+        return delegate.send(Flux.merge(
+                Flux.from(messages).doFinally(signal -> rejections.tryEmitComplete()),
+                rejections.asFlux()));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public Mono<Void> close(CloseStatus status) {
+        return delegate.close(status);
+    }
+
+    @Override
+    public Mono<CloseStatus> closeStatus() {
+        return delegate.closeStatus();
+    }
+
+    @Override
+    public WebSocketMessage textMessage(String payload) {
+        return delegate.textMessage(payload);
+    }
+
+    @Override
+    public WebSocketMessage binaryMessage(Function<DataBufferFactory, DataBuffer> payloadFactory) {
+        return delegate.binaryMessage(payloadFactory);
+    }
+
+    @Override
+    public WebSocketMessage pingMessage(Function<DataBufferFactory, DataBuffer> payloadFactory) {
+        return delegate.pingMessage(payloadFactory);
+    }
+
+    @Override
+    public WebSocketMessage pongMessage(Function<DataBufferFactory, DataBuffer> payloadFactory) {
+        return delegate.pongMessage(payloadFactory);
+    }
+}
@@ -0,0 +1,148 @@
+package com.chatstream.apiGateway.ratelimit;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Token buckets for one kind of limit, one bucket per client key. Buckets are refilled lazily when used
+// and split over stripes, each behind its own lock, so callers with different keys rarely contend. A
+// stripe holds at most maxKeysPerStripe buckets; past that the least recently used one is dropped, so a
+// flood of distinct keys cannot grow it. The dropped key starts again from a full bucket, which is what
+// an idle key has anyway.
+//
+// Every bucket also counts the tokens taken since the last sync, which RedisBucketSync shares with the
+// other gateways.
+public class TokenBuckets {
+
+    private final String name;
+    private final double capacity;
+    private final double refillPerNano;
+    private final int maxKeysPerStripe;
+    private final Stripe[] stripes;
+
+    public TokenBuckets(String name, long capacity, double refillPerSecond, int stripeCount, int maxKeysPerStripe) {
+        this.name = name;
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / 1_000_000_000d;
+        this.maxKeysPerStripe = maxKeysPerStripe;
+        this.stripes = new Stripe[Integer.highestOneBit(Math.max(stripeCount, 1))];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean tryAcquire(String key) {
+        return tryAcquire(key, 1, System.nanoTime());
+    }
+
+    // At the given System.nanoTime() reading
+    boolean tryAcquire(String key, long now) {
+        return tryAcquire(key, 1, now);
+    }
+
+    // All of the tokens or none of them
+    boolean tryAcquire(String key, int tokens, long now) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(capacity, now);
+                stripe.buckets.put(key, bucket);
+            }
+
+            bucket.refill(now);
+            if (bucket.tokens < tokens) {
+                return false;
+            }
+            bucket.tokens -= tokens;
+            bucket.unsynced += tokens;
+            return true;
+        }
+    }
+
+    // Buckets currently held, over all stripes
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.buckets.size();
+            }
+        }
+        return size;
+    }
+
+    // Tokens taken per key since the last call
+    public Map<String, Long> drainTaken() {
+        Map<String, Long> taken = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.buckets.forEach((key, bucket) -> {
+                    if (bucket.unsynced > 0) {
+                        taken.put(key, bucket.unsynced);
+                        bucket.unsynced = 0;
+                    }
+                });
+            }
+        }
+        return taken;
+    }
+
+    // Takes what other gateways took from the key, given this gateway's share of the sync and the total
+    // all gateways reported so far
+    public void applySynced(String key, long taken, long total) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(key);
+            if (bucket == null) {
+                return;
+            }
+
+            bucket.syncedOwn += taken;
+            if (total < bucket.syncedOwn) {
+                // The shared counter expired and started over
+                bucket.syncedOwn = taken;
+                bucket.seenOthers = 0;
+            }
+            long others = total - bucket.syncedOwn;
+            bucket.tokens = Math.max(bucket.tokens - Math.max(others - bucket.seenOthers, 0), 0);
+            bucket.seenOthers = others;
+        }
+    }
+
+    private Stripe stripeOf(String key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private final class Stripe {
+        // In access order, so the eldest entry is the least recently used bucket
+        private final Map<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                return size() > maxKeysPerStripe;
+            }
+        };
+    }
+
+    private final class Bucket {
+        private double tokens;
+        private long refilledAt;
+        private long unsynced;
+        private long syncedOwn;
+        private long seenOthers;
+
+        private Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * refillPerNano);
+            refilledAt = now;
+        }
+    }
+}
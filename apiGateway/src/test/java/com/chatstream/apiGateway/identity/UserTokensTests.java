@@ -0,0 +1,53 @@
+package com.chatstream.apiGateway.identity;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserTokensTests {
+
+	private final UserTokens tokens = new UserTokens("secret");
+
+	@Test
+	void verifiesIssuedTokenUntilItExpires() {
+		String token = tokens.issue("alice", 2_000);
+
+		assertThat(tokens.verify(token, 1_999)).isEqualTo("alice");
+		assertThat(tokens.verify(token, 2_000)).isNull();
+	}
+
+	@Test
+	void keepsDotsInUserId() {
+		assertThat(tokens.verify(tokens.issue("a.b.c", 2_000), 1_000)).isEqualTo("a.b.c");
+	}
+
+	@Test
+	void rejectsChangedUserOrExpiry() {
+		String token = tokens.issue("alice", 2_000);
+		String signature = token.substring(token.lastIndexOf('.'));
+
+		assertThat(tokens.verify("mallory.2000" + signature, 1_000)).isNull();
+		assertThat(tokens.verify("alice.9000" + signature, 1_000)).isNull();
+	}
+
+	@Test
+	void rejectsTokenSignedWithOtherSecret() {
+		String forged = new UserTokens("other").issue("alice", 2_000);
+
+		assertThat(tokens.verify(forged, 1_000)).isNull();
+	}
+
+	@Test
+	void rejectsMalformedTokens() {
+		assertThat(tokens.verify("", 1_000)).isNull();
+		assertThat(tokens.verify("alice", 1_000)).isNull();
+		assertThat(tokens.verify(".2000.sig", 1_000)).isNull();
+		assertThat(tokens.verify("alice.soon.sig", 1_000)).isNull();
+	}
+
+	@Test
+	void verifiesNothingWithoutSecret() {
+		assertThat(new UserTokens("").verify(tokens.issue("alice", 2_000), 1_000)).isNull();
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.chatstream.apiGateway.loadbalancer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HashRingTests {
+
+	@Test
+	void walksEveryInstanceOnceStartingAtTheOwner() {
+		HashRing ring = HashRing.of(instances(3), 160);
+
+		List<ServiceInstance> walk = ring.walk("room-1");
+
+		assertThat(walk).extracting(HashRing::keyOf).containsExactlyInAnyOrder("broker-0", "broker-1", "broker-2");
+		assertThat(HashRing.of(instances(3), 160).walk("room-1").get(0)).isEqualTo(walk.get(0));
+	}
+
+	@Test
+	void emptyRingHasNoOwner() {
+		assertThat(HashRing.of(List.of(), 160).walk("room-1")).isEmpty();
+	}
+
+	@Test
+	void collapsesDuplicateInstances() {
+		List<ServiceInstance> instances = new ArrayList<>(instances(2));
+		instances.add(instance(1));
+
+		HashRing ring = HashRing.of(instances, 160);
+
+		assertThat(ring.members()).containsExactly("broker-0", "broker-1");
+		assertThat(ring.walk("room-1")).hasSize(2);
+	}
+
+	@Test
+	void spreadsRoomsEvenly() {
+		HashRing ring = HashRing.of(instances(4), 160);
+
+		Map<String, Integer> owned = new HashMap<>();
+		for (int room = 0; room < 4000; room++) {
+			owned.merge(HashRing.keyOf(ring.walk("room-" + room).get(0)), 1, Integer::sum);
+		}
+
+		assertThat(owned).hasSize(4);
+		assertThat(owned.values()).allSatisfy(rooms -> assertThat(rooms).isBetween(700, 1300));
+	}
+
+	@Test
+	void addingAnInstanceOnlyMovesRoomsToIt() {
+		HashRing before = HashRing.of(instances(3), 160);
+		HashRing after = HashRing.of(instances(4), 160);
+
+		int moved = 0;
+		for (int room = 0; room < 4000; room++) {
+			String owner = HashRing.keyOf(before.walk("room-" + room).get(0));
+			String newOwner = HashRing.keyOf(after.walk("room-" + room).get(0));
+			if (!owner.equals(newOwner)) {
+				assertThat(newOwner).isEqualTo("broker-3");
+				moved++;
+			}
+		}
+		assertThat(moved).isBetween(700, 1300);
+	}
+
+	static List<ServiceInstance> instances(int count) {
+		List<ServiceInstance> instances = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			instances.add(instance(i));
+		}
+		return instances;
+	}
+
+	static ServiceInstance instance(int index) {
+		return new DefaultServiceInstance("broker-" + index, "messageBroker", "10.0.0." + index, 8081, false);
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.chatstream.apiGateway.loadbalancer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.CompletionContext;
+import org.springframework.cloud.client.loadbalancer.DefaultRequest;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.RequestData;
+import org.springframework.cloud.client.loadbalancer.RequestDataContext;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.util.LinkedMultiValueMap;
+import reactor.core.publisher.Flux;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.chatstream.apiGateway.loadbalancer.HashRingTests.instances;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamAffinityLoadBalancerTests {
+
+	private final List<ServiceInstance> instances = instances(3);
+	private final StreamAffinityLoadBalancer loadBalancer = loadBalancer(instances);
+
+	@Test
+	void sendsARoomToItsOwnerWhileLoadIsEven() {
+		ServiceInstance owner = HashRing.of(instances, 160).walk("room-1").get(0);
+
+		for (int i = 0; i < 5; i++) {
+			Request<RequestDataContext> request = request("room-1");
+			Response<ServiceInstance> response = choose(request);
+			assertThat(response.getServer()).isEqualTo(owner);
+			loadBalancer.onComplete(new CompletionContext<>(CompletionContext.Status.SUCCESS, request, response));
+		}
+	}
+
+	@Test
+	void spillsABusyRoomClockwiseWithinTheLoadBound() {
+		List<ServiceInstance> walk = HashRing.of(instances, 160).walk("room-1");
+
+		Map<ServiceInstance, Integer> open = new HashMap<>();
+		for (int connections = 1; connections <= 30; connections++) {
+			ServiceInstance chosen = choose(request("room-1")).getServer();
+			open.merge(chosen, 1, Integer::sum);
+
+			int bound = (int) Math.ceil(1.25 * connections / instances.size());
+			assertThat(open.values()).allSatisfy(load -> assertThat(load).isLessThanOrEqualTo(bound));
+		}
+		assertThat(open.get(walk.get(0))).isGreaterThanOrEqualTo(open.get(walk.get(2)));
+		assertThat(open).hasSize(3);
+	}
+
+	@Test
+	void sendsRequestsWithoutRoomToTheLeastLoaded() {
+		ServiceInstance owner = choose(request("room-1")).getServer();
+
+		ServiceInstance chosen = choose(request(null)).getServer();
+
+		assertThat(chosen).isNotEqualTo(owner);
+	}
+
+	private Response<ServiceInstance> choose(Request<RequestDataContext> request) {
+		return loadBalancer.choose(request).block();
+	}
+
+	private static Request<RequestDataContext> request(String room) {
+		URI url = URI.create("http://gateway/ws/stream" + (room == null ? "" : "?stream=" + room));
+		return new DefaultRequest<>(new RequestDataContext(new RequestData(HttpMethod.GET, url, new HttpHeaders(),
+				new LinkedMultiValueMap<>(), Map.of())));
+	}
+
+	private static StreamAffinityLoadBalancer loadBalancer(List<ServiceInstance> instances) {
+		StaticListableBeanFactory beans = new StaticListableBeanFactory();
+		beans.addBean("supplier", new ServiceInstanceListSupplier() {
+			@Override
+			public String getServiceId() {
+				return "messageBroker";
+			}
+
+			@Override
+			public Flux<List<ServiceInstance>> get() {
+				return Flux.just(instances);
+			}
+		});
+		return new StreamAffinityLoadBalancer(beans.getBeanProvider(ServiceInstanceListSupplier.class),
+				"messageBroker", "stream", 160, 0.25);
+	}
+
+}
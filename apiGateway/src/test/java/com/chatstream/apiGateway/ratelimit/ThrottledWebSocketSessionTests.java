@@ -0,0 +1,131 @@
+package com.chatstream.apiGateway.ratelimit;
+
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ThrottledWebSocketSessionTests {
+
+	private final List<String> sent = new ArrayList<>();
+
+	@Test
+	void chargesTextPublishesPerMessage() {
+		assertThat(ThrottledWebSocketSession.costOf(text("PUBLISH:room-1:hi"))).isEqualTo(1);
+		assertThat(ThrottledWebSocketSession.costOf(text("SEND:room-1:c-1:text:hi"))).isEqualTo(1);
+		assertThat(ThrottledWebSocketSession.costOf(text("PUBLISH_BATCH:room-1:a\nb\n\nc\n"))).isEqualTo(3);
+		assertThat(ThrottledWebSocketSession.costOf(text("PUBLISH_BATCH:room-1:a:b"))).isEqualTo(1);
+		assertThat(ThrottledWebSocketSession.costOf(text("PUBLISH_BATCH:room-1"))).isEqualTo(1);
+		assertThat(ThrottledWebSocketSession.costOf(text("SUBSCRIBE:room-1"))).isZero();
+		assertThat(ThrottledWebSocketSession.costOf(text("PUBLISH"))).isZero();
+		assertThat(ThrottledWebSocketSession.costOf(text(""))).isZero();
+	}
+
+	@Test
+	void chargesBinaryPublishesPerMessage() {
+		assertThat(ThrottledWebSocketSession.costOf(binary(0x01, 0, 1, 'r', 0, 0, 0, 1, 'a', 0, 0, 0, 0)))
+				.isEqualTo(2);
+		assertThat(ThrottledWebSocketSession.costOf(binary(0x01, 0, 1, 'r', 0, 0, 0, 9, 'a'))).isEqualTo(1);
+		assertThat(ThrottledWebSocketSession.costOf(binary(0x01, 0, 1, 'r'))).isEqualTo(1);
+		assertThat(ThrottledWebSocketSession.costOf(binary(0x04))).isEqualTo(1);
+		assertThat(ThrottledWebSocketSession.costOf(binary(0x05))).isEqualTo(1);
+		assertThat(ThrottledWebSocketSession.costOf(binary(0x02, 0, 1, 'r'))).isZero();
+		assertThat(ThrottledWebSocketSession.costOf(binary())).isZero();
+	}
+
+	@Test
+	void dropsABatchTheBucketCannotCover() {
+		WebSocketSession delegate = delegate(text("PUBLISH_BATCH:room-1:a\nb\nc"), text("PUBLISH_BATCH:room-1:d\ne"));
+		ThrottledWebSocketSession session = new ThrottledWebSocketSession(delegate,
+				new TokenBuckets("test", 4, 0.001, 1, 16), "user:alice", 10, 60_000);
+
+		List<String> forwarded = session.receive().map(WebSocketMessage::getPayloadAsText).collectList().block();
+		session.send(Flux.empty()).block();
+
+		assertThat(forwarded).containsExactly("PUBLISH_BATCH:room-1:a\nb\nc");
+		assertThat(sent).containsExactly("ERROR:" + ThrottledWebSocketSession.REJECTED_REPLY);
+	}
+
+	@Test
+	void limitsOnlyPublishesAndAnswersDroppedOnes() {
+		WebSocketSession delegate = delegate(text("PUBLISH:room-1:a"), text("SUBSCRIBE:room-1"),
+				text("PUBLISH:room-1:b"), text("UNSUBSCRIBE:room-1"));
+		ThrottledWebSocketSession session = new ThrottledWebSocketSession(delegate,
+				new TokenBuckets("test", 1, 0.001, 1, 16), "user:alice", 10, 60_000);
+
+		List<String> forwarded = session.receive().map(WebSocketMessage::getPayloadAsText).collectList().block();
+		// Nothing comes from the broker here, so only the gateway's own replies are sent
+		session.send(Flux.empty()).block();
+
+		assertThat(forwarded).containsExactly("PUBLISH:room-1:a", "SUBSCRIBE:room-1", "UNSUBSCRIBE:room-1");
+		assertThat(sent).containsExactly("ERROR:" + ThrottledWebSocketSession.REJECTED_REPLY);
+	}
+
+	@Test
+	void closesAfterTooManyDropsWithinTheWindow() {
+		WebSocketSession delegate = delegate(text("PUBLISH:r:a"), text("PUBLISH:r:b"), text("PUBLISH:r:c"));
+		ThrottledWebSocketSession session = new ThrottledWebSocketSession(delegate,
+				new TokenBuckets("test", 1, 0.001, 1, 16), "user:alice", 2, 60_000);
+
+		session.receive().blockLast();
+
+		verify(delegate).close(any(CloseStatus.class));
+	}
+
+	@Test
+	void startsCountingAgainInANewWindow() {
+		WebSocketSession delegate = delegate(text("PUBLISH:r:a"), text("PUBLISH:r:b"), text("PUBLISH:r:c"));
+		ThrottledWebSocketSession session = new ThrottledWebSocketSession(delegate,
+				new TokenBuckets("test", 1, 0.001, 1, 16), "user:alice", 2, 0);
+
+		session.receive().blockLast();
+
+		verify(delegate, never()).close(any(CloseStatus.class));
+	}
+
+	@SuppressWarnings("unchecked")
+	private WebSocketSession delegate(WebSocketMessage... received) {
+		WebSocketSession delegate = mock(WebSocketSession.class);
+		when(delegate.receive()).thenReturn(Flux.just(received));
+		when(delegate.close(any(CloseStatus.class))).thenReturn(Mono.empty());
+		when(delegate.textMessage(any())).thenAnswer(call -> text(call.getArgument(0)));
+		when(delegate.binaryMessage(any())).thenAnswer(call -> new WebSocketMessage(WebSocketMessage.Type.BINARY,
+				((Function<DefaultDataBufferFactory, DataBuffer>) call.getArgument(0))
+						.apply(DefaultDataBufferFactory.sharedInstance)));
+		when(delegate.send(any())).thenAnswer(call -> Flux.from((Publisher<WebSocketMessage>) call.getArgument(0))
+				.doOnNext(message -> sent.add(message.getPayloadAsText()))
+				.then());
+		return delegate;
+	}
+
+	private static WebSocketMessage text(String payload) {
+		return new WebSocketMessage(WebSocketMessage.Type.TEXT,
+				DefaultDataBufferFactory.sharedInstance.wrap(payload.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static WebSocketMessage binary(int... bytes) {
+		byte[] payload = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			payload[i] = (byte) bytes[i];
+		}
+		return new WebSocketMessage(WebSocketMessage.Type.BINARY, DefaultDataBufferFactory.sharedInstance.wrap(payload));
+	}
+
+}
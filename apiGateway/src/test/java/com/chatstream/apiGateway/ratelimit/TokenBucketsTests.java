@@ -0,0 +1,107 @@
+package com.chatstream.apiGateway.ratelimit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenBucketsTests {
+
+	private static final long SECOND = 1_000_000_000L;
+
+	@Test
+	void allowsABurstUpToCapacity() {
+		TokenBuckets buckets = new TokenBuckets("test", 3, 1, 4, 16);
+
+		assertThat(buckets.tryAcquire("alice", 0)).isTrue();
+		assertThat(buckets.tryAcquire("alice", 0)).isTrue();
+		assertThat(buckets.tryAcquire("alice", 0)).isTrue();
+		assertThat(buckets.tryAcquire("alice", 0)).isFalse();
+		assertThat(buckets.tryAcquire("bob", 0)).isTrue();
+	}
+
+	@Test
+	void refillsAtTheConfiguredRate() {
+		TokenBuckets buckets = new TokenBuckets("test", 2, 4, 4, 16);
+		buckets.tryAcquire("alice", 0);
+		buckets.tryAcquire("alice", 0);
+
+		assertThat(buckets.tryAcquire("alice", SECOND / 8)).isFalse();
+		assertThat(buckets.tryAcquire("alice", SECOND / 4)).isTrue();
+		assertThat(buckets.tryAcquire("alice", SECOND / 4)).isFalse();
+	}
+
+	@Test
+	void refillsNoFurtherThanCapacity() {
+		TokenBuckets buckets = new TokenBuckets("test", 2, 100, 4, 16);
+		buckets.tryAcquire("alice", 0);
+
+		for (int i = 0; i < 2; i++) {
+			assertThat(buckets.tryAcquire("alice", 60 * SECOND)).isTrue();
+		}
+		assertThat(buckets.tryAcquire("alice", 60 * SECOND)).isFalse();
+	}
+
+	@Test
+	void takesSeveralTokensAtOnceOrNone() {
+		TokenBuckets buckets = new TokenBuckets("test", 5, 1, 4, 16);
+
+		assertThat(buckets.tryAcquire("alice", 3, 0)).isTrue();
+		assertThat(buckets.tryAcquire("alice", 3, 0)).isFalse();
+		assertThat(buckets.tryAcquire("alice", 2, 0)).isTrue();
+		assertThat(buckets.drainTaken()).isEqualTo(Map.of("alice", 5L));
+	}
+
+	@Test
+	void staysBoundedUnderAFloodOfDistinctKeys() {
+		TokenBuckets buckets = new TokenBuckets("test", 10, 1, 4, 8);
+
+		for (int i = 0; i < 10_000; i++) {
+			// Every bucket is left partly drained
+			buckets.tryAcquire("client-" + i, i);
+		}
+
+		assertThat(buckets.size()).isLessThanOrEqualTo(4 * 8);
+	}
+
+	@Test
+	void dropsTheLeastRecentlyUsedBucketWhenAStripeIsAtItsSize() {
+		TokenBuckets buckets = new TokenBuckets("test", 1, 1, 1, 2);
+		buckets.tryAcquire("alice", 0);
+		buckets.tryAcquire("bob", 0);
+		buckets.tryAcquire("alice", 0);
+
+		assertThat(buckets.tryAcquire("carol", 0)).isTrue();
+
+		// Bob's drained bucket made room; Alice's is still drained
+		assertThat(buckets.tryAcquire("alice", 0)).isFalse();
+		assertThat(buckets.size()).isEqualTo(2);
+	}
+
+	@Test
+	void reportsTokensTakenSinceTheLastDrain() {
+		TokenBuckets buckets = new TokenBuckets("test", 10, 1, 4, 16);
+		buckets.tryAcquire("alice", 0);
+		buckets.tryAcquire("alice", 0);
+		buckets.tryAcquire("bob", 0);
+
+		assertThat(buckets.drainTaken()).isEqualTo(Map.of("alice", 2L, "bob", 1L));
+		assertThat(buckets.drainTaken()).isEmpty();
+	}
+
+	@Test
+	void takesWhatOtherGatewaysTook() {
+		TokenBuckets buckets = new TokenBuckets("test", 10, 1, 4, 16);
+		buckets.tryAcquire("alice", 0);
+		buckets.drainTaken();
+
+		// This gateway took 1 of the 8 all gateways reported, so 7 came from elsewhere
+		buckets.applySynced("alice", 1, 8);
+
+		assertThat(buckets.tryAcquire("alice", 0)).isTrue();
+		assertThat(buckets.tryAcquire("alice", 0)).isTrue();
+		assertThat(buckets.tryAcquire("alice", 0)).isFalse();
+	}
+
+}
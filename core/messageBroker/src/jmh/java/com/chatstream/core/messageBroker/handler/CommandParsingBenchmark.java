@@ -0,0 +1,68 @@
+package com.chatstream.core.messageBroker.handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Parsing done by RedisStreamWebSocketHandler.handleCommand for every inbound frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandParsingBenchmark {
+
+    @Param({"64", "1024"})
+    private int messageBytes;
+
+    @Param({"100"})
+    private int batchSize;
+
+    private String publishCommand;
+    private String batchBody;
+    private byte[] binaryBatch;
+
+    @Setup
+    public void setUp() {
+        String message = "x".repeat(messageBytes);
+        publishCommand = "PUBLISH:room-42:" + message;
+
+        List<String> messages = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            messages.add(message);
+        }
+        batchBody = String.join("\n", messages);
+
+        DataBuffer buffer = new PublishBatchFrame("room-42", messages).toBinary(DefaultDataBufferFactory.sharedInstance);
+        binaryBatch = new byte[buffer.readableByteCount()];
+        buffer.read(binaryBatch);
+    }
+
+    @Benchmark
+    public void splitCommand(Blackhole blackhole) {
+        String[] parts = publishCommand.split(":", 3);
+        blackhole.consume(parts[0]);
+        blackhole.consume(parts[1]);
+        blackhole.consume(parts[2]);
+    }
+
+    @Benchmark
+    public PublishBatchFrame parseTextBatch() {
+        return PublishBatchFrame.fromText("room-42", batchBody);
+    }
+
+    @Benchmark
+    public PublishBatchFrame parseBinaryBatch() {
+        return PublishBatchFrame.fromBinary(DefaultDataBufferFactory.sharedInstance.wrap(binaryBatch));
+    }
+}
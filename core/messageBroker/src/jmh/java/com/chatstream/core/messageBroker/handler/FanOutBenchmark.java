@@ -0,0 +1,72 @@
+package com.chatstream.core.messageBroker.handler;
+
+import com.chatstream.core.messageBroker.metrics.BrokerMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.data.redis.connection.stream.RecordId;
+import reactor.core.Disposable;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One message emitted into a stream sink and delivered to every local subscriber's outbound queue,
+// set up the way RedisStreamWebSocketHandler wires a stream to its sessions. The sessions' writers
+// are stood in for by subscribers that drain each queue into a Blackhole.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FanOutBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int subscribers;
+
+    @Param({"256"})
+    private int messageBytes;
+
+    @Param({"TEXT", "BINARY"})
+    private FrameProtocol protocol;
+
+    private final List<Disposable> disposables = new ArrayList<>();
+    private Sinks.Many<StreamDelivery> streamSink;
+    private String message;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        BrokerMetrics metrics = new BrokerMetrics(new SimpleMeterRegistry());
+        SessionOutbound.Options options = new SessionOutbound.Options(1024,
+                SessionOutbound.OverflowPolicy.DROP_OLDEST, 10000, 65536);
+
+        streamSink = Sinks.many().multicast().directBestEffort();
+        message = "x".repeat(messageBytes);
+
+        for (int i = 0; i < subscribers; i++) {
+            // Only the DISCONNECT policy touches the session, so none is needed here
+            SessionOutbound outbound = new SessionOutbound(null, protocol, options, metrics);
+            disposables.add(outbound.asFlux().subscribe(blackhole::consume));
+            disposables.add(streamSink.asFlux()
+                    .subscribe(delivery -> outbound.emit(delivery.encoded(protocol))));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        disposables.forEach(Disposable::dispose);
+        disposables.clear();
+    }
+
+    @Benchmark
+    public Sinks.EmitResult fanOut() {
+        return streamSink.tryEmitNext(new StreamDelivery(RecordId.autoGenerate(), "room-42", message));
+    }
+}
@@ -0,0 +1,62 @@
+package com.chatstream.core.messageBroker.handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost of turning outbound messages into WebSocket frame payloads
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameEncodingBenchmark {
+
+    @Param({"64", "1024"})
+    private int messageBytes;
+
+    @Param({"100"})
+    private int batchSize;
+
+    private String message;
+    private PublishBatchFrame batch;
+
+    @Setup
+    public void setUp() {
+        message = "x".repeat(messageBytes);
+        List<String> messages = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            messages.add(message);
+        }
+        batch = new PublishBatchFrame("room-42", messages);
+    }
+
+    // Paid once per message per stream, however many subscribers share the result
+    @Benchmark
+    public byte[] encodeTextMessage() {
+        return FrameProtocol.TEXT.encodeMessage("room-42", message);
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryMessage() {
+        return FrameProtocol.BINARY.encodeMessage("room-42", message);
+    }
+
+    @Benchmark
+    public int encodeBinaryBatch() {
+        DataBuffer buffer = batch.toBinary(DefaultDataBufferFactory.sharedInstance);
+        int size = buffer.readableByteCount();
+        DataBufferUtils.release(buffer);
+        return size;
+    }
+}
@@ -0,0 +1,120 @@
+package com.chatstream.core.messageBroker.service;
+
+import com.chatstream.core.messageBroker.metrics.BrokerMetrics;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Publishing through RedisStreamService against a real Redis: the XADDs plus the persist schedule and
+// recent history updates. Needs a local Redis (docker-compose up redis); point elsewhere with
+// -Djmh.redis.host/port. MongoDB is only read by history and resume reads, so it need not be running.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PublishEndToEndBenchmark {
+
+    @Param({"1", "100"})
+    private int batchSize;
+
+    @Param({"256"})
+    private int messageBytes;
+
+    private AnnotationConfigApplicationContext context;
+    private RedisStreamService redisStreamService;
+    private String stream;
+    private MessageEnvelope message;
+    private List<MessageEnvelope> messages;
+
+    @Setup
+    public void setUp() {
+        context = new AnnotationConfigApplicationContext(RedisConfig.class, PersistSchedule.class,
+                PersistedMessages.class, RecentHistory.class, BrokerMetrics.class, RedisStreamService.class);
+        redisStreamService = context.getBean(RedisStreamService.class);
+        stream = "jmh:publish:" + System.nanoTime();
+        message = MessageEnvelope.text("jmh-user", "x".repeat(messageBytes));
+        messages = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            messages.add(message);
+        }
+    }
+
+    @TearDown
+    @SuppressWarnings("unchecked")
+    public void tearDown() {
+        ReactiveRedisTemplate<String, String> redisTemplate = context.getBean(ReactiveRedisTemplate.class);
+        PersistSchedule persistSchedule = context.getBean(PersistSchedule.class);
+        redisTemplate.delete(stream, context.getBean(RecentHistory.class).key(stream))
+                .then(redisTemplate.opsForSet().remove("chatstream:streams", stream))
+                .then(redisTemplate.opsForZSet().remove(persistSchedule.dueKey(stream), stream))
+                .then(redisTemplate.opsForHash().remove(persistSchedule.backlogKey(stream), stream))
+                .block();
+        context.close();
+    }
+
+    @Benchmark
+    public Object publish() {
+        return batchSize == 1
+                ? redisStreamService.appendMessage(stream, message).block()
+                : redisStreamService.publishMessages(stream, messages).block();
+    }
+
+    @Configuration
+    static class RedisConfig {
+
+        @Bean
+        static PropertySourcesPlaceholderConfigurer placeholderConfigurer() {
+            return new PropertySourcesPlaceholderConfigurer();
+        }
+
+        @Bean
+        LettuceConnectionFactory connectionFactory() {
+            return new LettuceConnectionFactory(new RedisStandaloneConfiguration(
+                    System.getProperty("jmh.redis.host", "localhost"),
+                    Integer.getInteger("jmh.redis.port", 6379)));
+        }
+
+        @Bean
+        ReactiveRedisTemplate<String, String> reactiveRedisTemplate(LettuceConnectionFactory connectionFactory) {
+            return new ReactiveRedisTemplate<>(connectionFactory, RedisSerializationContext.string());
+        }
+
+        // Connects lazily; publishing never queries it
+        @Bean(destroyMethod = "close")
+        MongoClient mongoClient() {
+            return MongoClients.create(System.getProperty("jmh.mongodb.uri", "mongodb://localhost:27017"));
+        }
+
+        @Bean
+        ReactiveMongoTemplate reactiveMongoTemplate(MongoClient mongoClient) {
+            return new ReactiveMongoTemplate(mongoClient, "ChatStream");
+        }
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
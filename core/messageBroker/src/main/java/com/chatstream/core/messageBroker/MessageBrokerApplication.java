@@ -2,8 +2,10 @@ package com.chatstream.core.messageBroker;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class MessageBrokerApplication {
 
 	public static void main(String[] args) {
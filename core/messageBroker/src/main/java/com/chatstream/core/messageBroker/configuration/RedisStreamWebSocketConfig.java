@@ -1,8 +1,10 @@
 package com.chatstream.core.messageBroker.configuration;
 
 import com.chatstream.core.messageBroker.handler.RedisStreamWebSocketHandler;
-import com.chatstream.core.messageBroker.service.MongoMessageService;
+import com.chatstream.core.messageBroker.handler.SessionOutbound;
+import com.chatstream.core.messageBroker.metrics.BrokerMetrics;
 import com.chatstream.core.messageBroker.service.RedisStreamService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.reactive.HandlerMapping;
@@ -16,17 +18,45 @@ import java.util.Map;
 public class RedisStreamWebSocketConfig {
 
     private final RedisStreamService redisStreamService;
-    private final MongoMessageService mongoMessageService;
+    private final BrokerMetrics brokerMetrics;
 
-    public RedisStreamWebSocketConfig(RedisStreamService redisStreamService,MongoMessageService mongoMessageService) {
+    @Value("${publish_batch_max_messages:1000}")
+    private int publishBatchMaxMessages;
+
+    // Frames a session may have queued before the overflow policy applies
+    @Value("${session_outbound_capacity:1024}")
+    private int sessionOutboundCapacity;
+
+    @Value("${session_overflow_policy:DROP_OLDEST}")
+    private SessionOutbound.OverflowPolicy sessionOverflowPolicy;
+
+    @Value("${session_lag_disconnect_ms:10000}")
+    private long sessionLagDisconnectMs;
+
+    @Value("${session_coalesce_max_bytes:65536}")
+    private int sessionCoalesceMaxBytes;
+
+    @Value("${local_emit_max_pending:10000}")
+    private int localEmitMaxPending;
+
+    @Value("${resume_page_size:200}")
+    private int resumePageSize;
+
+    @Value("${resume_max_replay:10000}")
+    private int resumeMaxReplay;
+
+    public RedisStreamWebSocketConfig(RedisStreamService redisStreamService, BrokerMetrics brokerMetrics) {
         this.redisStreamService = redisStreamService;
-        this.mongoMessageService = mongoMessageService;
+        this.brokerMetrics = brokerMetrics;
     }
 
     @Bean
     public HandlerMapping webSocketHandlerMapping() {
         Map<String, WebSocketHandler> map = new HashMap<>();
-        map.put("/ws/stream", new RedisStreamWebSocketHandler(redisStreamService,mongoMessageService));
+        map.put("/ws/stream", new RedisStreamWebSocketHandler(redisStreamService, brokerMetrics,
+                new SessionOutbound.Options(sessionOutboundCapacity, sessionOverflowPolicy,
+                        sessionLagDisconnectMs, sessionCoalesceMaxBytes),
+                publishBatchMaxMessages, localEmitMaxPending, resumePageSize, resumeMaxReplay));
 
         SimpleUrlHandlerMapping handlerMapping = new SimpleUrlHandlerMapping();
         handlerMapping.setUrlMap(map);
@@ -1,9 +1,15 @@
 package com.chatstream.core.messageBroker.controller;
 
+import com.chatstream.core.messageBroker.service.MessageEnvelope;
+import com.chatstream.core.messageBroker.service.RecentHistory;
 import com.chatstream.core.messageBroker.service.RedisStreamService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.connection.stream.ObjectRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -18,21 +24,53 @@ import java.util.Map;
 public class RedisStreamController {
 
     private final RedisStreamService redisStreamService;
+    private final RecentHistory recentHistory;
 
-    public RedisStreamController(RedisStreamService redisStreamService) {
+    @Value("${resume_page_size:200}")
+    private int resumePageSize;
+
+    public RedisStreamController(RedisStreamService redisStreamService, RecentHistory recentHistory) {
         this.redisStreamService = redisStreamService;
+        this.recentHistory = recentHistory;
     }
 
-    // Endpoint to publish a message to a specific Redis Stream
+    // Endpoint to publish a message to a specific Redis Stream. The sender is the user the gateway
+    // verified, as for WebSocket sessions; a client-supplied sender would also defeat the retry dedup.
     @PostMapping("/publish")
-    public Mono<String> publishMessage(@RequestParam String stream, @RequestParam String message) {
-        return redisStreamService.publishMessage(stream, message);
+    public Mono<String> publishMessage(@RequestParam String stream, @RequestParam String message,
+                                       @RequestHeader(name = "X-User-Id", required = false) String senderId,
+                                       @RequestParam(required = false) String clientMessageId,
+                                       @RequestParam(required = false) String contentType) {
+        if (senderId == null || senderId.isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Missing user"));
+        }
+        return redisStreamService.publishMessage(stream,
+                new MessageEnvelope(senderId, clientMessageId, contentType, message));
     }
 
-    // SSE Endpoint to consume messages from a given Redis Stream
+    // SSE Endpoint to consume messages from a given Redis Stream, from the start or after lastId
     @GetMapping(value = "/consume", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<ObjectRecord<String, String>> consumeMessages(@RequestParam String stream) {
-        return redisStreamService.consumeMessages(stream);
+    public Flux<ObjectRecord<String, String>> consumeMessages(@RequestParam String stream,
+                                                              @RequestParam(required = false) String lastId) {
+        if (lastId == null) {
+            return redisStreamService.consumeMessages(stream);
+        }
+        return redisStreamService.consumeMessagesAfter(stream, parseEntryId(lastId), resumePageSize);
+    }
+
+    // Accepts explicit IDs only ("<millis>-<sequence>"), not the auto-generate marker
+    private static RecordId parseEntryId(String value) {
+        try {
+            RecordId id = RecordId.of(value);
+            if (!id.shouldBeAutoGenerated()) {
+                id.getTimestamp();
+                id.getSequence();
+                return id;
+            }
+        } catch (IllegalArgumentException e) {
+            // Reported below
+        }
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Not an entry ID: " + value);
     }
 
     // Endpoint to publish a message to a specific Redis Stream
@@ -59,4 +97,14 @@ public class RedisStreamController {
             @RequestParam(defaultValue = "10") long count) {
         return redisStreamService.fetchNMessagesFromEnd(stream, count);
     }
+
+    // Latest messages of a room, newest first, served from the recent history and continued from MongoDB.
+    // The next page is asked for with before set to the ID of the oldest message received.
+    @GetMapping("/history/recent")
+    public Flux<Map<String, String>> fetchRecentHistory(
+            @RequestParam String stream,
+            @RequestParam(defaultValue = "50") int count,
+            @RequestParam(required = false) String before) {
+        return recentHistory.recent(stream, count, before == null ? null : parseEntryId(before));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+package com.chatstream.core.messageBroker.handler;
+
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+// Commands sent as binary frames, read straight from the frame's buffer. PUBLISH_BATCH (0x01) is
+// parsed by PublishBatchFrame; the others are:
+//
+// SUBSCRIBE   [0x02][stream length: u16][stream: UTF-8][last seen entry ID: ASCII, optional, the rest of the frame]
+// UNSUBSCRIBE [0x03][stream length: u16][stream: UTF-8]
+// PUBLISH     [0x04][stream length: u16][stream: UTF-8][message: UTF-8, the rest of the frame]
+// SEND        [0x05][stream length: u16][stream: UTF-8][client message ID length: u8][client message ID: UTF-8]
+//             [content type length: u8][content type: UTF-8][message: UTF-8, the rest of the frame]
+//             All integers are big-endian. Empty client message ID or content type means none.
+public class BinaryCommand {
+    public static final byte SUBSCRIBE_OPCODE = 0x02;
+    public static final byte UNSUBSCRIBE_OPCODE = 0x03;
+    public static final byte PUBLISH_OPCODE = 0x04;
+    public static final byte SEND_OPCODE = 0x05;
+
+    private final byte opcode;
+    private final String stream;
+    private final String message;
+    private final String lastId;
+    private final String clientMessageId;
+    private final String contentType;
+
+    public BinaryCommand(byte opcode, String stream, String message, String lastId,
+                         String clientMessageId, String contentType) {
+        this.opcode = opcode;
+        this.stream = stream;
+        this.message = message;
+        this.lastId = lastId;
+        this.clientMessageId = clientMessageId;
+        this.contentType = contentType;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public String getStream() {
+        return stream;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    // Entry to resume after, or null to subscribe from now on
+    public String getLastId() {
+        return lastId;
+    }
+
+    public String getClientMessageId() {
+        return clientMessageId;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    // Opcode of the frame without consuming it
+    public static byte opcodeOf(DataBuffer buffer) {
+        if (buffer.readableByteCount() == 0) {
+            throw new IllegalArgumentException("Empty frame");
+        }
+        return buffer.getByte(buffer.readPosition());
+    }
+
+    public static BinaryCommand fromBinary(DataBuffer buffer) {
+        byte opcode = opcodeOf(buffer);
+        if (opcode != SUBSCRIBE_OPCODE && opcode != UNSUBSCRIBE_OPCODE && opcode != PUBLISH_OPCODE
+                && opcode != SEND_OPCODE) {
+            throw new IllegalArgumentException("Unknown opcode " + opcode);
+        }
+        buffer.read();
+
+        String stream = readString(buffer, readUnsignedShort(buffer));
+        if (stream.isEmpty()) {
+            throw new IllegalArgumentException("Missing stream name");
+        }
+
+        String message = null;
+        String lastId = null;
+        String clientMessageId = null;
+        String contentType = null;
+        if (opcode == SEND_OPCODE) {
+            clientMessageId = readString(buffer, readUnsignedByte(buffer));
+            contentType = readString(buffer, readUnsignedByte(buffer));
+        }
+        if (opcode == PUBLISH_OPCODE || opcode == SEND_OPCODE) {
+            message = readString(buffer, buffer.readableByteCount());
+            if (message.isEmpty()) {
+                throw new IllegalArgumentException("Missing message content");
+            }
+        } else if (opcode == SUBSCRIBE_OPCODE && buffer.readableByteCount() > 0) {
+            lastId = readString(buffer, buffer.readableByteCount());
+        }
+        return new BinaryCommand(opcode, stream, message, lastId, clientMessageId, contentType);
+    }
+
+    static int readUnsignedByte(DataBuffer buffer) {
+        requireReadable(buffer, 1);
+        return buffer.read() & 0xFF;
+    }
+
+    static int readUnsignedShort(DataBuffer buffer) {
+        requireReadable(buffer, 2);
+        return ((buffer.read() & 0xFF) << 8) | (buffer.read() & 0xFF);
+    }
+
+    static int readInt(DataBuffer buffer) {
+        requireReadable(buffer, 4);
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (buffer.read() & 0xFF);
+        }
+        return value;
+    }
+
+    // Decodes in place from the buffer without copying the bytes out first
+    static String readString(DataBuffer buffer, int length) {
+        requireReadable(buffer, length);
+        String value = buffer.toString(buffer.readPosition(), length, StandardCharsets.UTF_8);
+        buffer.readPosition(buffer.readPosition() + length);
+        return value;
+    }
+
+    private static void requireReadable(DataBuffer buffer, int length) {
+        if (length < 0 || buffer.readableByteCount() < length) {
+            throw new IllegalArgumentException("Truncated binary frame");
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.chatstream.core.messageBroker.handler;
+
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Wire format of the frames a session receives, chosen during the handshake. Clients that offer the
+// binary subprotocol get length-prefixed binary frames; all others keep the original text frames.
+//
+// Binary: MESSAGE [0x10][stream length: u16][stream: UTF-8][payload length: u32][payload: UTF-8]
+//         SUCCESS [0x11][text length: u32][text: UTF-8]
+//         ERROR   [0x12][text length: u32][text: UTF-8]
+//         All integers are big-endian. Frames are self-delimiting, so one WebSocket message may carry
+//         several of them back to back.
+//
+// Text frames cannot be told apart once merged, as payloads may contain any character. A text message
+// carrying several frames is "BATCH:" followed by each frame as its UTF-8 byte length in decimal, ':' and
+// the frame itself, e.g. "BATCH:11:MESSAGE:a:x12:SUCCESS:done".
+public enum FrameProtocol {
+    TEXT(WebSocketMessage.Type.TEXT),
+    BINARY(WebSocketMessage.Type.BINARY);
+
+    public static final String BINARY_SUBPROTOCOL = "chatstream.binary.v1";
+
+    public static final byte MESSAGE_OPCODE = 0x10;
+    public static final byte SUCCESS_OPCODE = 0x11;
+    public static final byte ERROR_OPCODE = 0x12;
+
+    private static final byte[] BATCH_PREFIX = "BATCH:".getBytes(StandardCharsets.US_ASCII);
+
+    private final WebSocketMessage.Type messageType;
+
+    FrameProtocol(WebSocketMessage.Type messageType) {
+        this.messageType = messageType;
+    }
+
+    public static FrameProtocol of(WebSocketSession session) {
+        return BINARY_SUBPROTOCOL.equals(session.getHandshakeInfo().getSubProtocol()) ? BINARY : TEXT;
+    }
+
+    public WebSocketMessage.Type getMessageType() {
+        return messageType;
+    }
+
+    public byte[] encodeMessage(String stream, String payload) {
+        if (this == TEXT) {
+            return ("MESSAGE:" + stream + ":" + payload).getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] streamBytes = stream.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 2 + streamBytes.length + 4 + payloadBytes.length)
+                .put(MESSAGE_OPCODE)
+                .putShort((short) streamBytes.length)
+                .put(streamBytes)
+                .putInt(payloadBytes.length)
+                .put(payloadBytes)
+                .array();
+    }
+
+    public byte[] encodeReply(boolean success, String text) {
+        if (this == TEXT) {
+            return ((success ? "SUCCESS:" : "ERROR:") + text).getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 4 + textBytes.length)
+                .put(success ? SUCCESS_OPCODE : ERROR_OPCODE)
+                .putInt(textBytes.length)
+                .put(textBytes)
+                .array();
+    }
+
+    // Merges queued frames into one WebSocket message: a BATCH of length-prefixed frames for text, back to
+    // back for binary. A single frame is sent as it is.
+    public byte[] join(List<byte[]> frames) {
+        if (frames.size() == 1) {
+            return frames.get(0);
+        }
+
+        int size = this == TEXT ? BATCH_PREFIX.length : 0;
+        for (byte[] frame : frames) {
+            size += joinedSize(frame);
+        }
+
+        ByteBuffer joined = ByteBuffer.allocate(size);
+        if (this == TEXT) {
+            joined.put(BATCH_PREFIX);
+        }
+        for (byte[] frame : frames) {
+            if (this == TEXT) {
+                joined.put((frame.length + ":").getBytes(StandardCharsets.US_ASCII));
+            }
+            joined.put(frame);
+        }
+        return joined.array();
+    }
+
+    // Bytes a frame takes up inside a joined message
+    public int joinedSize(byte[] frame) {
+        return this == TEXT ? String.valueOf(frame.length).length() + 1 + frame.length : frame.length;
+    }
+}
@@ -0,0 +1,82 @@
+package com.chatstream.core.messageBroker.handler;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Many messages for one stream in a single frame.
+//
+// Text:   PUBLISH_BATCH:<stream>:<message>\n<message>\n...   (messages must not contain newlines)
+// Binary: [0x01][stream length: u16][stream: UTF-8] then per message [length: u32][message: UTF-8]
+//         All integers are big-endian.
+public class PublishBatchFrame {
+    public static final byte BINARY_OPCODE = 0x01;
+
+    private final String stream;
+    private final List<String> messages;
+
+    public PublishBatchFrame(String stream, List<String> messages) {
+        this.stream = stream;
+        this.messages = messages;
+    }
+
+    public String getStream() {
+        return stream;
+    }
+
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    public static PublishBatchFrame fromText(String stream, String body) {
+        List<String> messages = new ArrayList<>();
+        for (String message : body.split("\n")) {
+            if (!message.isEmpty()) {
+                messages.add(message);
+            }
+        }
+        return new PublishBatchFrame(stream, messages);
+    }
+
+    public static PublishBatchFrame fromBinary(DataBuffer buffer) {
+        if (buffer.readableByteCount() < 3 || buffer.read() != BINARY_OPCODE) {
+            throw new IllegalArgumentException("Not a binary PUBLISH_BATCH frame");
+        }
+
+        String stream = BinaryCommand.readString(buffer, BinaryCommand.readUnsignedShort(buffer));
+        if (stream.isEmpty()) {
+            throw new IllegalArgumentException("Missing stream name");
+        }
+
+        List<String> messages = new ArrayList<>();
+        while (buffer.readableByteCount() > 0) {
+            messages.add(BinaryCommand.readString(buffer, BinaryCommand.readInt(buffer)));
+        }
+        return new PublishBatchFrame(stream, messages);
+    }
+
+    public DataBuffer toBinary(DataBufferFactory bufferFactory) {
+        byte[] streamBytes = stream.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> messageBytes = new ArrayList<>(messages.size());
+        int size = 3 + streamBytes.length;
+        for (String message : messages) {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            messageBytes.add(bytes);
+            size += 4 + bytes.length;
+        }
+
+        DataBuffer buffer = bufferFactory.allocateBuffer(size);
+        buffer.write(BINARY_OPCODE);
+        buffer.write(new byte[] {(byte) (streamBytes.length >>> 8), (byte) streamBytes.length});
+        buffer.write(streamBytes);
+        for (byte[] bytes : messageBytes) {
+            buffer.write(new byte[] {(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                    (byte) (bytes.length >>> 8), (byte) bytes.length});
+            buffer.write(bytes);
+        }
+        return buffer;
+    }
+}
@@ -1,8 +1,14 @@
 package com.chatstream.core.messageBroker.handler;
 
-import com.chatstream.core.messageBroker.service.MongoMessageService;
+import com.chatstream.core.messageBroker.metrics.BrokerMetrics;
+import com.chatstream.core.messageBroker.service.AppendedEntries;
+import com.chatstream.core.messageBroker.service.MessageEnvelope;
 import com.chatstream.core.messageBroker.service.RedisStreamService;
-import org.springframework.beans.factory.annotation.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.web.reactive.socket.WebSocketHandler;
 import org.springframework.web.reactive.socket.WebSocketMessage;
 import org.springframework.web.reactive.socket.WebSocketSession;
@@ -11,46 +17,93 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class RedisStreamWebSocketHandler implements WebSocketHandler {
+    private static final Logger log = LoggerFactory.getLogger(RedisStreamWebSocketHandler.class);
+    private static final Comparator<RecordId> ID_ORDER =
+            Comparator.comparingLong(RecordId::getTimestamp).thenComparingLong(RecordId::getSequence);
+
     private final RedisStreamService redisStreamService;
-    private final MongoMessageService mongoMessageService;
-    private final Map<String, Sinks.Many<String>> streamSinks = new ConcurrentHashMap<>();
+    // Streams with at least one subscriber on this node; removed when the last one leaves
+    private final Map<String, LocalStream> localStreams = new ConcurrentHashMap<>();
 
-    //@Value("${stream_batch_size:10}")
-    private int streamBatchSize=10;
+    // Outbound queues of the sessions currently open on this node
+    private final Set<SessionOutbound> sessions = ConcurrentHashMap.newKeySet();
+    private final BrokerMetrics metrics;
+    private final SessionOutbound.Options outboundOptions;
+    private final int publishBatchMaxMessages;
+    // Most entries per stream that may be emitted locally while the reader has yet to see them
+    private final int localEmitMaxPending;
+    // Entries read per replay page, and the most a resumed subscription replays before going live
+    private final int resumePageSize;
+    private final int resumeMaxReplay;
 
-    public RedisStreamWebSocketHandler(RedisStreamService redisStreamService,MongoMessageService mongoMessageService) {
+    public RedisStreamWebSocketHandler(RedisStreamService redisStreamService, BrokerMetrics metrics,
+                                       SessionOutbound.Options outboundOptions, int publishBatchMaxMessages,
+                                       int localEmitMaxPending, int resumePageSize, int resumeMaxReplay) {
         this.redisStreamService = redisStreamService;
-        this.mongoMessageService = mongoMessageService;
+        this.metrics = metrics;
+        this.outboundOptions = outboundOptions;
+        this.publishBatchMaxMessages = publishBatchMaxMessages;
+        this.localEmitMaxPending = localEmitMaxPending;
+        this.resumePageSize = resumePageSize;
+        this.resumeMaxReplay = resumeMaxReplay;
+        metrics.registerSessions(sessions);
+        metrics.registerLocalStreams(localStreams);
+    }
 
+    // Offered during the handshake; clients that ask for it get binary frames instead of text
+    @Override
+    public List<String> getSubProtocols() {
+        return List.of(FrameProtocol.BINARY_SUBPROTOCOL);
     }
 
     @Override
     public Mono<Void> handle(WebSocketSession session) {
-        Sinks.Many<String> sessionSink = Sinks.many().unicast().onBackpressureBuffer();
+        FrameProtocol protocol = FrameProtocol.of(session);
+        String senderId = senderOf(session);
+        SessionOutbound outbound = new SessionOutbound(session, protocol, outboundOptions, metrics);
         Map<String, Disposable> subscriptions = new ConcurrentHashMap<>();
+        sessions.add(outbound);
 
         Mono<Void> input = session.receive()
-                .map(WebSocketMessage::getPayloadAsText)
-                .flatMap(payload -> handleCommand(session, payload, sessionSink, subscriptions))
+                .flatMap(message -> message.getType() == WebSocketMessage.Type.BINARY
+                        ? handleBinaryCommand(message, senderId, outbound, subscriptions)
+                        : handleCommand(message.getPayloadAsText(), senderId, outbound, subscriptions))
                 .doFinally(signal -> cleanupSubscriptions(subscriptions))
                 .then();
 
-        Mono<Void> output = session.send(sessionSink.asFlux().map(session::textMessage));
+        // Wrapping shares the queued bytes with the network buffer instead of copying them. An outbound that
+        // is to close after its last frames has the session closed here, once they are written.
+        Mono<Void> output = session.send(outbound.asFlux()
+                .map(frame -> new WebSocketMessage(protocol.getMessageType(), session.bufferFactory().wrap(frame))))
+                .then(Mono.defer(outbound::finish));
 
-        return Mono.zip(input, output).then();
+        return Mono.zip(input, output)
+                .doFinally(signal -> sessions.remove(outbound))
+                .then();
     }
 
-    private Mono<Void> handleCommand(WebSocketSession session, String payload,
-                                     Sinks.Many<String> sessionSink,
+    // Stamped on every message the session publishes. The gateway removes any X-User-Id the client sent
+    // and sets it from a verified user token only, so brokers must not be reachable other than through it.
+    // Null for anonymous sessions.
+    private static String senderOf(WebSocketSession session) {
+        return session.getHandshakeInfo().getHeaders().getFirst("X-User-Id");
+    }
+
+    private Mono<Void> handleCommand(String payload, String senderId,
+                                     SessionOutbound outbound,
                                      Map<String, Disposable> subscriptions) {
         String[] parts = payload.split(":", 3);
         if (parts.length < 2) {
-            return sendError(sessionSink, "Invalid message format");
+            return sendError(outbound, "Invalid message format");
         }
 
         String command = parts[0];
@@ -58,41 +111,193 @@ public class RedisStreamWebSocketHandler implements WebSocketHandler {
 
         switch (command) {
             case "SUBSCRIBE":
-                return handleSubscribe(stream, sessionSink, subscriptions);
+                // SUBSCRIBE:stream:lastId resumes after the last entry the client saw
+                return handleSubscribe(stream, parts.length == 3 ? parts[2] : null, outbound, subscriptions);
+            case "UNSUBSCRIBE":
+                return handleUnsubscribe(stream, outbound, subscriptions);
             case "PUBLISH":
-                if (parts.length < 3) return sendError(sessionSink, "Missing message content");
-                return handlePublish(stream, parts[2], sessionSink);
+                if (parts.length < 3) return sendError(outbound, "Missing message content");
+                return handlePublish(stream, MessageEnvelope.text(senderId, parts[2]), outbound);
+            case "SEND":
+                // SEND:stream:clientMessageId:contentType:message, either ID or type may be left empty
+                String[] envelope = parts.length < 3 ? new String[0] : parts[2].split(":", 3);
+                if (envelope.length < 3) return sendError(outbound, "Missing message content");
+                return handlePublish(stream,
+                        new MessageEnvelope(senderId, envelope[0], envelope[1], envelope[2]), outbound);
+            case "PUBLISH_BATCH":
+                if (parts.length < 3) return sendError(outbound, "Missing message content");
+                return handlePublishBatch(PublishBatchFrame.fromText(stream, parts[2]), senderId, outbound);
             default:
-                return sendError(sessionSink, "Unknown command: " + command);
+                return sendError(outbound, "Unknown command: " + command);
         }
     }
 
-    private Mono<Void> handleSubscribe(String stream, Sinks.Many<String> sessionSink,
+    private Mono<Void> handleBinaryCommand(WebSocketMessage message, String senderId, SessionOutbound outbound,
+                                           Map<String, Disposable> subscriptions) {
+        DataBuffer payload = message.getPayload();
+        try {
+            if (BinaryCommand.opcodeOf(payload) == PublishBatchFrame.BINARY_OPCODE) {
+                return handlePublishBatch(PublishBatchFrame.fromBinary(payload), senderId, outbound);
+            }
+
+            BinaryCommand command = BinaryCommand.fromBinary(payload);
+            switch (command.getOpcode()) {
+                case BinaryCommand.SUBSCRIBE_OPCODE:
+                    return handleSubscribe(command.getStream(), command.getLastId(), outbound, subscriptions);
+                case BinaryCommand.UNSUBSCRIBE_OPCODE:
+                    return handleUnsubscribe(command.getStream(), outbound, subscriptions);
+                default:
+                    return handlePublish(command.getStream(), new MessageEnvelope(senderId,
+                            command.getClientMessageId(), command.getContentType(), command.getMessage()), outbound);
+            }
+        } catch (IllegalArgumentException e) {
+            return sendError(outbound, "Invalid binary frame: " + e.getMessage());
+        }
+    }
+
+    private Mono<Void> handleSubscribe(String stream, String lastId, SessionOutbound outbound,
                                        Map<String, Disposable> subscriptions) {
         if (subscriptions.containsKey(stream)) {
-            sendSuccess(sessionSink, "Already subscribed to " + stream);
+            sendSuccess(outbound, "Already subscribed to " + stream);
             return Mono.empty();
         }
 
-        Sinks.Many<String> streamSink = streamSinks.computeIfAbsent(stream,
-                key -> Sinks.many().multicast().onBackpressureBuffer());
+        RecordId resumeAfter = null;
+        if (lastId != null && !lastId.isEmpty()) {
+            try {
+                resumeAfter = parseEntryId(lastId);
+            } catch (IllegalArgumentException e) {
+                return sendError(outbound, "Invalid last ID: " + lastId);
+            }
+        }
 
-        Disposable subscription = streamSink.asFlux()
-                .doOnNext(msg -> sessionSink.tryEmitNext("MESSAGE:" + stream + ":" + msg))
-                .subscribe();
+        LocalStream localStream = acquireStream(stream);
+
+        Disposable subscription = resumeAfter == null
+                ? localStream.sink.asFlux()
+                        .doOnNext(delivery -> outbound.emit(delivery.encoded(outbound.getProtocol())))
+                        .subscribe()
+                : new ResumedSubscription(stream, resumeAfter, localStream.sink.asFlux(), outbound,
+                        redisStreamService, resumePageSize, resumeMaxReplay);
 
-        subscriptions.put(stream, subscription);
+        subscriptions.put(stream, () -> {
+            subscription.dispose();
+            releaseStream(stream);
+        });
+
+        sendSuccess(outbound, "Subscribed to " + stream);
+        return Mono.empty();
+    }
+
+    // Accepts explicit IDs only ("<millis>-<sequence>"), not the auto-generate marker
+    private static RecordId parseEntryId(String value) {
+        RecordId id = RecordId.of(value);
+        if (id.shouldBeAutoGenerated()) {
+            throw new IllegalArgumentException("Not an entry ID");
+        }
+        id.getTimestamp();
+        id.getSequence();
+        return id;
+    }
+
+    private Mono<Void> handleUnsubscribe(String stream, SessionOutbound outbound,
+                                         Map<String, Disposable> subscriptions) {
+        Disposable subscription = subscriptions.remove(stream);
+        if (subscription == null) {
+            return sendError(outbound, "Not subscribed to " + stream);
+        }
+
+        subscription.dispose();
+        sendSuccess(outbound, "Unsubscribed from " + stream);
+        return Mono.empty();
+    }
+
+    // The first local subscriber creates the stream's sink and starts tailing Redis
+    private LocalStream acquireStream(String stream) {
+        return localStreams.compute(stream, (key, localStream) -> {
+            if (localStream == null) {
+                localStream = new LocalStream();
+                localStream.reader = startStreamReader(stream, localStream);
+            }
+            localStream.subscribers++;
+            return localStream;
+        });
+    }
 
-        // Start consuming from Redis if not already started
-        redisStreamService.consumeMessages(stream)
-                .doOnNext(record -> {
-                    Sinks.Many<String> sink = streamSinks.get(stream);
-                    if (sink != null) sink.tryEmitNext(record.getValue());
+    // The last local subscriber to leave stops the Redis reader and drops the stream's state
+    private void releaseStream(String stream) {
+        localStreams.computeIfPresent(stream, (key, localStream) -> {
+            if (--localStream.subscribers > 0) {
+                return localStream;
+            }
+            localStream.reader.dispose();
+            synchronized (localStream) {
+                localStream.sink.tryEmitComplete();
+            }
+            redisStreamService.stopTailing(stream);
+            return null;
+        });
+    }
+
+    // Entries published anywhere in the cluster reach this node's subscribers through its own reader
+    private Disposable startStreamReader(String stream, LocalStream localStream) {
+        return redisStreamService.tailStream(stream)
+                .concatMap(record -> {
+                    emitRead(localStream, record);
+                    return redisStreamService.acknowledge(stream, record);
                 })
                 .subscribe();
+    }
 
-        sendSuccess(sessionSink, "Subscribed to " + stream);
-        return Mono.empty();
+    // Skips entries a publisher on this node has already emitted. The reader delivers in ID order, so
+    // local emits it has caught up with are forgotten.
+    private void emitRead(LocalStream localStream, MapRecord<String, String, String> record) {
+        synchronized (localStream) {
+            RecordId id = record.getId();
+            metrics.streamLag(id);
+            boolean emitted = localStream.emittedLocally.contains(id);
+            localStream.emittedLocally.headSet(id, true).clear();
+            if (!emitted && isAfter(id, localStream.lastDelivered)) {
+                localStream.lastDelivered = id;
+                emitToStream(localStream.sink, new StreamDelivery(id, record.getStream(),
+                        redisStreamService.payloadOf(record)));
+            }
+        }
+    }
+
+    // Local subscribers get messages published on this node as soon as Redis has assigned their IDs,
+    // without waiting for the reader's next round trip, but only while that keeps delivery in ID order:
+    // the entry before them must be the last one delivered. Otherwise (entries from other nodes not read
+    // yet, or the pending cap reached because the reader stalled) they are left to the reader.
+    private void emitPublished(String stream, AppendedEntries appended, List<String> messages) {
+        LocalStream localStream = localStreams.get(stream);
+        if (localStream == null) {
+            return;
+        }
+
+        synchronized (localStream) {
+            String previousId = appended.getPreviousId();
+            List<String> ids = appended.getIds();
+            for (int i = 0; i < ids.size(); i++) {
+                RecordId id = RecordId.of(ids.get(i));
+                if (localStream.emittedLocally.size() >= localEmitMaxPending
+                        || !isLastDelivered(localStream, previousId)) {
+                    return;
+                }
+                localStream.emittedLocally.add(id);
+                localStream.lastDelivered = id;
+                emitToStream(localStream.sink, new StreamDelivery(id, stream, messages.get(i)));
+                previousId = ids.get(i);
+            }
+        }
+    }
+
+    private static boolean isLastDelivered(LocalStream localStream, String id) {
+        return id != null && localStream.lastDelivered != null && localStream.lastDelivered.getValue().equals(id);
+    }
+
+    static boolean isAfter(RecordId id, RecordId other) {
+        return other == null || ID_ORDER.compare(id, other) > 0;
     }
 
 //    private Mono<Void> handlePublish(String stream, String message, Sinks.Many<String> sessionSink) {
@@ -106,49 +311,61 @@ public class RedisStreamWebSocketHandler implements WebSocketHandler {
 //                .then();
 //    }
 
-    private Mono<Void> handlePublish(String stream, String message, Sinks.Many<String> sessionSink) {
-        return redisStreamService.publishMessage(stream, message)
-                .flatMap(id -> redisStreamService.getStreamLength(stream)
-                        .flatMap(length -> {
-                            System.out.println("Stream length before check: " + length + ", stream_batch_size : " + streamBatchSize);
-                            if (length > streamBatchSize) {
-                                return redisStreamService.processBatch(stream)
-                                        .thenReturn(id)
-                                        .onErrorResume(error -> {
-                                            System.out.println("Error processing stream batch: " + error.getMessage());
-                                            error.printStackTrace();
-                                            return Mono.error(error);
-                                        });
-                            }
-                            return Mono.just(id);
-                        }))
-                .doOnSuccess(id -> {
-                    Sinks.Many<String> streamSink = streamSinks.get(stream);
-                    if (streamSink != null) {
-                        streamSink.tryEmitNext(message);
-                    }
-                    sendSuccess(sessionSink, "PUBLISHED:" + stream + ":" + id);
+    private Mono<Void> handlePublish(String stream, MessageEnvelope message, SessionOutbound outbound) {
+        // Persistence is handled by the storage service, so publishing is a single XADD
+        return redisStreamService.appendMessage(stream, message)
+                .doOnSuccess(appended -> {
+                    emitPublished(stream, appended, List.of(message.getContent()));
+                    sendSuccess(outbound, "PUBLISHED:" + stream + ":" + appended.getIds().get(0));
                 })
                 .doOnError(err -> {
-                    System.out.println("Publish failed: " + err.getMessage());
-                    err.printStackTrace();
-                    sendError(sessionSink, "Publish failed: " + err.getMessage());
+                    log.warn("Publish to {} failed", stream, err);
+                    sendError(outbound, "Publish failed: " + err.getMessage());
                 })
                 .then();
     }
 
-    // Placeholder method for database operations
-    private Mono<Void> saveMessagesToDatabase(String stream, List<Map<String, String>> messages) {
-        return mongoMessageService.saveStreamMessages(stream, messages);
+    // All messages of the frame go to Redis in one round trip and are acknowledged together
+    private Mono<Void> handlePublishBatch(PublishBatchFrame frame, String senderId, SessionOutbound outbound) {
+        String stream = frame.getStream();
+        if (frame.getMessages().isEmpty()) {
+            return sendError(outbound, "Missing message content");
+        }
+        if (frame.getMessages().size() > publishBatchMaxMessages) {
+            return sendError(outbound, "Batch exceeds " + publishBatchMaxMessages + " messages");
+        }
+
+        List<MessageEnvelope> messages = frame.getMessages().stream()
+                .map(content -> MessageEnvelope.text(senderId, content))
+                .toList();
+        return redisStreamService.publishMessages(stream, messages)
+                .doOnSuccess(appended -> {
+                    emitPublished(stream, appended, frame.getMessages());
+                    sendSuccess(outbound, "PUBLISHED_BATCH:" + stream + ":" + String.join(",", appended.getIds()));
+                })
+                .doOnError(err -> {
+                    log.warn("Batch publish to {} failed", stream, err);
+                    sendError(outbound, "Publish failed: " + err.getMessage());
+                })
+                .then();
     }
 
+    private void emitToStream(Sinks.Many<StreamDelivery> sink, StreamDelivery delivery) {
+        Sinks.EmitResult result = sink.tryEmitNext(delivery);
+        if (result.isSuccess()) {
+            metrics.fanOut(sink.currentSubscriberCount());
+        } else if (result != Sinks.EmitResult.FAIL_ZERO_SUBSCRIBER) {
+            // Having no local subscriber left is not a delivery failure
+            metrics.emitFailure("stream", result);
+        }
+    }
 
-    private void sendSuccess(Sinks.Many<String> sink, String message) {
-        sink.tryEmitNext("SUCCESS:" + message);
+    private void sendSuccess(SessionOutbound outbound, String message) {
+        outbound.emitReply(outbound.getProtocol().encodeReply(true, message));
     }
 
-    private Mono<Void> sendError(Sinks.Many<String> sink, String message) {
-        sink.tryEmitNext("ERROR:" + message);
+    private Mono<Void> sendError(SessionOutbound outbound, String message) {
+        outbound.emitReply(outbound.getProtocol().encodeReply(false, message));
         return Mono.empty();
     }
 
@@ -156,4 +373,19 @@ public class RedisStreamWebSocketHandler implements WebSocketHandler {
         subscriptions.values().forEach(Disposable::dispose);
         subscriptions.clear();
     }
+
+    // Per-stream state shared by the local subscribers of a stream. The reader and subscriber count
+    // are only touched inside localStreams.compute(); emitting into the sink and the dedup state are
+    // guarded by the LocalStream's own monitor, as the reader and publishers emit concurrently.
+    private static class LocalStream {
+        // Subscribers never apply backpressure here (each hands frames straight to its bounded session
+        // queue), so the stream sink does not need to buffer anything itself
+        private final Sinks.Many<StreamDelivery> sink = Sinks.many().multicast().directBestEffort();
+        // IDs emitted by local publishers that the reader has not reached yet
+        private final NavigableSet<RecordId> emittedLocally = new TreeSet<>(ID_ORDER);
+        // Newest entry handed to the sink, by the reader or a local publisher
+        private RecordId lastDelivered;
+        private Disposable reader;
+        private int subscribers;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package com.chatstream.core.messageBroker.handler;
+
+import com.chatstream.core.messageBroker.service.RedisStreamService;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.web.reactive.socket.CloseStatus;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+// A subscription that first replays what the client missed after its last seen entry, then switches to
+// the live stream. It listens to the live stream from the start and holds those deliveries back during
+// the replay. Deliveries the replay already covered are dropped, so each entry reaches the client once.
+// Replay pages are only read while the session's queue has room for a whole page, so a long replay
+// does not push the session into its overflow policy.
+//
+// At most a queue's worth of live deliveries is held back. Beyond that they are dropped, and the replay
+// reads once more before handing over, which covers them as they were in Redis before being delivered.
+// A client that would need more than the replay cap, or whose replay fails, is disconnected instead of
+// being switched to the live stream with a gap; it can resume again from the last entry it received.
+class ResumedSubscription implements Disposable {
+
+    private static final Duration ROOM_POLL_INTERVAL = Duration.ofMillis(20);
+
+    private final String stream;
+    private final SessionOutbound outbound;
+    private final RedisStreamService redisStreamService;
+    private final int pageSize;
+    private final int maxReplay;
+    private final List<StreamDelivery> heldBack = new ArrayList<>();
+    private final int maxHeldBack;
+    // Held-back deliveries were dropped since the replay last read
+    private boolean droppedHeldBack;
+    // Newest entry the replay sent; live deliveries up to here were part of it
+    private RecordId replayedUpTo;
+    private boolean replaying = true;
+    private int replayed;
+    private final Disposable live;
+    private final Disposable replay;
+
+    ResumedSubscription(String stream, RecordId lastId, Flux<StreamDelivery> liveDeliveries,
+                        SessionOutbound outbound, RedisStreamService redisStreamService,
+                        int pageSize, int maxReplay) {
+        this.stream = stream;
+        this.outbound = outbound;
+        this.redisStreamService = redisStreamService;
+        this.pageSize = Math.min(pageSize, outbound.capacity());
+        this.maxReplay = maxReplay;
+        this.maxHeldBack = outbound.capacity();
+        this.replayedUpTo = lastId;
+        this.live = liveDeliveries.subscribe(this::onLive);
+        this.replay = replayAfter(lastId)
+                .subscribe(null, error -> abort(CloseStatus.SERVER_ERROR.withReason("Replay failed"),
+                        "Replay of " + stream + " failed: " + error.getMessage()));
+    }
+
+    private synchronized void onLive(StreamDelivery delivery) {
+        if (replaying) {
+            if (heldBack.size() >= maxHeldBack) {
+                heldBack.clear();
+                droppedHeldBack = true;
+            }
+            heldBack.add(delivery);
+        } else {
+            outbound.emit(delivery.encoded(outbound.getProtocol()));
+        }
+    }
+
+    private Mono<Void> replayAfter(RecordId cursor) {
+        if (replayed >= maxReplay) {
+            abort(CloseStatus.SERVICE_OVERLOAD.withReason("Resume limit reached"),
+                    "Resume of " + stream + " stopped after " + maxReplay + " messages");
+            return Mono.empty();
+        }
+
+        return awaitRoom()
+                .then(redisStreamService.entriesAfter(stream, cursor, Math.min(pageSize, maxReplay - replayed)))
+                .flatMap(page -> {
+                    if (page.isEmpty()) {
+                        return handOver() ? Mono.empty() : replayAfter(cursor);
+                    }
+                    emitReplayed(page);
+                    return replayAfter(page.get(page.size() - 1).getId());
+                });
+    }
+
+    private synchronized void emitReplayed(List<MapRecord<String, String, String>> page) {
+        for (MapRecord<String, String, String> record : page) {
+            outbound.emit(outbound.getProtocol().encodeMessage(stream, redisStreamService.payloadOf(record)));
+        }
+        replayed += page.size();
+        replayedUpTo = page.get(page.size() - 1).getId();
+    }
+
+    // Every live delivery up to replayedUpTo was already in Redis or MongoDB when the replay read it, so it
+    // was sent. Returns false without handing over if held-back deliveries were dropped, as the replay has
+    // to read past them first.
+    private synchronized boolean handOver() {
+        if (droppedHeldBack) {
+            droppedHeldBack = false;
+            return false;
+        }
+        replaying = false;
+        for (StreamDelivery delivery : heldBack) {
+            if (RedisStreamWebSocketHandler.isAfter(delivery.getId(), replayedUpTo)) {
+                outbound.emit(delivery.encoded(outbound.getProtocol()));
+            }
+        }
+        heldBack.clear();
+        return true;
+    }
+
+    private Mono<Void> awaitRoom() {
+        return Mono.fromCallable(() -> outbound.hasRoomFor(pageSize))
+                .filter(hasRoom -> hasRoom)
+                .repeatWhenEmpty(attempts -> attempts.delayElements(ROOM_POLL_INTERVAL))
+                .then();
+    }
+
+    // Called once the replay has ended, so only the live subscription is left to stop. The session is
+    // closed after the error reply has been written.
+    private void abort(CloseStatus status, String message) {
+        live.dispose();
+        outbound.emitReply(outbound.getProtocol().encodeReply(false, message));
+        outbound.closeAfterQueued(status);
+    }
+
+    @Override
+    public void dispose() {
+        replay.dispose();
+        live.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return live.isDisposed();
+    }
+}
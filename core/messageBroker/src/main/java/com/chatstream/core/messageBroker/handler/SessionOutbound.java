@@ -0,0 +1,275 @@
+package com.chatstream.core.messageBroker.handler;
+
+import com.chatstream.core.messageBroker.metrics.BrokerMetrics;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Bounded queue of frames waiting to be written to one WebSocket session. When a client reads slower
+// than messages arrive the queue fills up and the configured overflow policy decides what gives way.
+// Replies to the client's own commands (SUCCESS, ERROR, PUBLISHED) are never dropped; they may take the
+// queue over its capacity, which only message frames count against.
+//
+// The queue is guarded by this object's lock and handed to the WebSocket as the client's demand allows,
+// so overflow handling and the writer never read it concurrently.
+public class SessionOutbound {
+
+    public enum OverflowPolicy {
+        // Discard the oldest queued message frame to make room for the new one
+        DROP_OLDEST,
+        // Merge everything queued into one WebSocket message (see FrameProtocol.join), so the client catches
+        // up in fewer writes; falls back to dropping the oldest message frames once the message would exceed
+        // the byte cap
+        COALESCE,
+        // Drop new message frames while full and close the session once it has stayed full for the lag threshold
+        DISCONNECT
+    }
+
+    public static class Options {
+        private final int capacity;
+        private final OverflowPolicy policy;
+        private final long lagDisconnectMs;
+        private final int coalesceMaxBytes;
+
+        public Options(int capacity, OverflowPolicy policy, long lagDisconnectMs, int coalesceMaxBytes) {
+            this.capacity = capacity;
+            this.policy = policy;
+            this.lagDisconnectMs = lagDisconnectMs;
+            this.coalesceMaxBytes = coalesceMaxBytes;
+        }
+    }
+
+    // An encoded frame; message frames are shared with the stream's other subscribers and never modified
+    private static final class Frame {
+        private final byte[] bytes;
+        private final boolean reply;
+
+        private Frame(byte[] bytes, boolean reply) {
+            this.bytes = bytes;
+            this.reply = reply;
+        }
+    }
+
+    private final WebSocketSession session;
+    private final FrameProtocol protocol;
+    private final Options options;
+    private final BrokerMetrics metrics;
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    private final Flux<byte[]> flux;
+    private int queuedMessages;
+    private FluxSink<byte[]> downstream;
+    private long requested;
+    private boolean draining;
+    // Start of the current run of overflows, or -1 while frames are being accepted
+    private long overflowingSince = -1;
+    private boolean closed;
+    // Set by closeAfterQueued(); the session is closed with it once the queue has been written
+    private CloseStatus closing;
+
+    public SessionOutbound(WebSocketSession session, FrameProtocol protocol, Options options, BrokerMetrics metrics) {
+        this.session = session;
+        this.protocol = protocol;
+        this.options = options;
+        this.metrics = metrics;
+        this.flux = Flux.create(sink -> {
+            synchronized (this) {
+                downstream = sink;
+            }
+            sink.onRequest(this::request);
+            sink.onDispose(this::cancelled);
+        });
+    }
+
+    public FrameProtocol getProtocol() {
+        return protocol;
+    }
+
+    public Flux<byte[]> asFlux() {
+        return flux;
+    }
+
+    public synchronized int depth() {
+        return queue.size();
+    }
+
+    public int capacity() {
+        return options.capacity;
+    }
+
+    // Whether this many message frames can be queued without triggering the overflow policy
+    public synchronized boolean hasRoomFor(int frames) {
+        return options.capacity - queuedMessages >= frames;
+    }
+
+    // Several streams and the command handler emit into the same session, hence the lock
+    public synchronized void emit(byte[] frame) {
+        if (closed) {
+            return;
+        }
+
+        if (queuedMessages < options.capacity) {
+            overflowingSince = -1;
+            enqueue(new Frame(frame, false));
+        } else {
+            handleOverflow(frame);
+        }
+        drain();
+    }
+
+    // A reply to one of the client's commands; always queued
+    public synchronized void emitReply(byte[] frame) {
+        if (closed) {
+            return;
+        }
+        enqueue(new Frame(frame, true));
+        drain();
+    }
+
+    private void handleOverflow(byte[] frame) {
+        switch (options.policy) {
+            case DROP_OLDEST:
+                if (dropOldestMessage()) {
+                    metrics.outboundDropped(options.policy);
+                }
+                enqueue(new Frame(frame, false));
+                break;
+            case COALESCE:
+                coalesce(frame);
+                break;
+            case DISCONNECT:
+                metrics.outboundDropped(options.policy);
+                long now = System.currentTimeMillis();
+                if (overflowingSince < 0) {
+                    overflowingSince = now;
+                } else if (now - overflowingSince >= options.lagDisconnectMs) {
+                    disconnect();
+                }
+                break;
+        }
+    }
+
+    private boolean dropOldestMessage() {
+        Iterator<Frame> frames = queue.iterator();
+        while (frames.hasNext()) {
+            if (!frames.next().reply) {
+                frames.remove();
+                queuedMessages--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The merged frame counts as a reply if it carries one, so it is never dropped afterwards
+    private void coalesce(byte[] frame) {
+        List<Frame> pending = new ArrayList<>(queue);
+        pending.add(new Frame(frame, false));
+        queue.clear();
+        queuedMessages = 0;
+
+        int bytes = 0;
+        for (Frame pendingFrame : pending) {
+            bytes += protocol.joinedSize(pendingFrame.bytes);
+        }
+        Iterator<Frame> oldestFirst = pending.iterator();
+        while (bytes > options.coalesceMaxBytes && pending.size() > 1 && oldestFirst.hasNext()) {
+            Frame candidate = oldestFirst.next();
+            if (!candidate.reply) {
+                oldestFirst.remove();
+                bytes -= protocol.joinedSize(candidate.bytes);
+                metrics.outboundDropped(options.policy);
+            }
+        }
+
+        List<byte[]> joined = new ArrayList<>(pending.size());
+        boolean reply = false;
+        for (Frame pendingFrame : pending) {
+            joined.add(pendingFrame.bytes);
+            reply |= pendingFrame.reply;
+        }
+        enqueue(new Frame(protocol.join(joined), reply));
+    }
+
+    private void enqueue(Frame frame) {
+        queue.addLast(frame);
+        if (!frame.reply) {
+            queuedMessages++;
+        }
+    }
+
+    private synchronized void request(long count) {
+        requested = requested + count < 0 ? Long.MAX_VALUE : requested + count;
+        drain();
+    }
+
+    // Hands queued frames to the WebSocket while it has demand. Writing may request more from within
+    // next(); the flag makes that call return, and the loop here picks up the new demand.
+    private void drain() {
+        if (draining || downstream == null) {
+            return;
+        }
+        draining = true;
+        try {
+            while (requested > 0 && !queue.isEmpty()) {
+                Frame frame = queue.pollFirst();
+                if (!frame.reply) {
+                    queuedMessages--;
+                }
+                requested--;
+                downstream.next(frame.bytes);
+            }
+            if (closing != null && queue.isEmpty()) {
+                downstream.complete();
+            }
+        } finally {
+            draining = false;
+        }
+    }
+
+    private synchronized void cancelled() {
+        closed = true;
+        queue.clear();
+        queuedMessages = 0;
+    }
+
+    // Closes the session; frames still queued are discarded
+    public synchronized void close(CloseStatus status) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        session.close(status).subscribe();
+    }
+
+    // Takes no more frames and ends the outbound flux once those queued have been handed on, e.g. a final
+    // error reply; the session is closed by finish() after they have been written
+    public synchronized void closeAfterQueued(CloseStatus status) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closing = status;
+        drain();
+    }
+
+    // Called when the WebSocket has written everything the outbound flux emitted
+    public Mono<Void> finish() {
+        CloseStatus status;
+        synchronized (this) {
+            status = closing;
+        }
+        return status == null ? Mono.empty() : session.close(status);
+    }
+
+    private void disconnect() {
+        metrics.slowConsumerDisconnect();
+        close(CloseStatus.POLICY_VIOLATION.withReason("Slow consumer"));
+    }
+}
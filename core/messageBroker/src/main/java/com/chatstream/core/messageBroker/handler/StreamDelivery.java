@@ -0,0 +1,41 @@
+package com.chatstream.core.messageBroker.handler;
+
+import org.springframework.data.redis.connection.stream.RecordId;
+
+// One message on its way to the local subscribers of a stream. It is encoded at most once per wire
+// format and every session speaking that format queues the same bytes, which are wrapped rather than
+// copied when written out.
+class StreamDelivery {
+    private final RecordId id;
+    private final String stream;
+    private final String payload;
+    // Two threads may both encode the first time; they produce identical bytes, so either result is fine
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    StreamDelivery(RecordId id, String stream, String payload) {
+        this.id = id;
+        this.stream = stream;
+        this.payload = payload;
+    }
+
+    RecordId getId() {
+        return id;
+    }
+
+    byte[] encoded(FrameProtocol protocol) {
+        if (protocol == FrameProtocol.TEXT) {
+            byte[] encoded = text;
+            if (encoded == null) {
+                text = encoded = protocol.encodeMessage(stream, payload);
+            }
+            return encoded;
+        }
+
+        byte[] encoded = binary;
+        if (encoded == null) {
+            binary = encoded = protocol.encodeMessage(stream, payload);
+        }
+        return encoded;
+    }
+}
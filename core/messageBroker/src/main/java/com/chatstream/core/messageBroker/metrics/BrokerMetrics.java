@@ -0,0 +1,110 @@
+package com.chatstream.core.messageBroker.metrics;
+
+import com.chatstream.core.messageBroker.handler.SessionOutbound;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+
+// Meters of the broker, exported through the Prometheus actuator endpoint. Streams are rooms, so no meter is
+// tagged with the stream name; per-stream figures are recorded as distributions instead.
+@Component
+public class BrokerMetrics {
+
+    private final MeterRegistry registry;
+    private final Counter publishedMessages;
+    private final Counter trimmedUnpersisted;
+    private final DistributionSummary fanOut;
+    private final Timer streamLag;
+
+    public BrokerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.publishedMessages = Counter.builder("chatstream.published.messages")
+                .description("Messages appended to the streams")
+                .register(registry);
+        this.trimmedUnpersisted = Counter.builder("chatstream.stream.trimmed.unpersisted")
+                .description("Entries the stream length cap removed before they were persisted (approximate)")
+                .register(registry);
+        this.fanOut = DistributionSummary.builder("chatstream.fanout.subscribers")
+                .description("Local subscribers each message read or published on this node was handed to")
+                .register(registry);
+        this.streamLag = Timer.builder("chatstream.stream.lag")
+                .description("Time from an entry being added to the stream until this node delivers it")
+                .register(registry);
+    }
+
+    public void registerLocalStreams(Map<String, ?> localStreams) {
+        Gauge.builder("chatstream.streams.local", localStreams, Map::size)
+                .description("Streams with at least one subscriber on this node")
+                .register(registry);
+    }
+
+    public void registerSessions(Collection<SessionOutbound> sessions) {
+        Gauge.builder("chatstream.sessions", sessions, Collection::size)
+                .description("Open WebSocket sessions")
+                .register(registry);
+        Gauge.builder("chatstream.session.outbound.queued", sessions,
+                        all -> all.stream().mapToInt(SessionOutbound::depth).sum())
+                .description("Frames waiting to be written, summed over all sessions")
+                .register(registry);
+        Gauge.builder("chatstream.session.outbound.depth.max", sessions,
+                        all -> all.stream().mapToInt(SessionOutbound::depth).max().orElse(0))
+                .description("Deepest outbound queue of any session")
+                .register(registry);
+    }
+
+    public void outboundDropped(SessionOutbound.OverflowPolicy policy) {
+        registry.counter("chatstream.session.outbound.dropped", "policy", policy.name()).increment();
+    }
+
+    public void slowConsumerDisconnect() {
+        registry.counter("chatstream.session.disconnects", "reason", "slow_consumer").increment();
+    }
+
+    public void emitFailure(String sink, Sinks.EmitResult result) {
+        registry.counter("chatstream.sink.emit.failures", "sink", sink, "result", result.name()).increment();
+    }
+
+    // Whole publish, from the command to the entry ID, including scheduling persistence
+    public <T> Mono<T> timePublish(String mode, int messages, Mono<T> publish) {
+        return time(Timer.builder("chatstream.publish.latency").tag("mode", mode), publish)
+                .doOnSuccess(result -> publishedMessages.increment(messages));
+    }
+
+    // One Redis round trip, tagged with the command (or script) it ran
+    public <T> Mono<T> timeRedis(String command, Mono<T> call) {
+        return time(Timer.builder("chatstream.redis.latency").tag("command", command), call);
+    }
+
+    public void trimmedUnpersisted(long entries) {
+        trimmedUnpersisted.increment(entries);
+    }
+
+    public void fanOut(int subscribers) {
+        fanOut.record(subscribers);
+    }
+
+    // Entry IDs start with the millisecond Redis added the entry at
+    public void streamLag(RecordId id) {
+        streamLag.record(Duration.ofMillis(Math.max(System.currentTimeMillis() - id.getTimestamp(), 0)));
+    }
+
+    private <T> Mono<T> time(Timer.Builder timer, Mono<T> call) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return call.doFinally(signal -> sample.stop(timer
+                    .tag("outcome", signal == SignalType.ON_ERROR ? "error" : "success")
+                    .register(registry)));
+        });
+    }
+}
@@ -0,0 +1,25 @@
+package com.chatstream.core.messageBroker.service;
+
+import java.util.List;
+
+// Entry IDs one publish was assigned, in order, and the ID of the entry that was newest in the stream just
+// before them. Redis appends atomically, so every entry up to and including previousId was already in the
+// stream, and nothing lies between it and the first new ID.
+public class AppendedEntries {
+    private final List<String> ids;
+    // Null if the stream was empty
+    private final String previousId;
+
+    public AppendedEntries(List<String> ids, String previousId) {
+        this.ids = ids;
+        this.previousId = previousId;
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public String getPreviousId() {
+        return previousId;
+    }
+}
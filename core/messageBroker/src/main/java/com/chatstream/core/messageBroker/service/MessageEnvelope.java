@@ -0,0 +1,78 @@
+package com.chatstream.core.messageBroker.service;
+
+import java.util.List;
+
+// A chat message as stored in a stream entry: one short field per attribute, so the storage service can
+// write it to the messages collection as is. The conversation is not repeated in every entry, as the
+// stream is named after its room; the server timestamp is the millisecond part of the entry ID.
+//
+// Fields: payload (content), sender, cmid (client message ID, retries of a message reuse it), type.
+// Only payload is always present. The storage service reads the same names.
+public class MessageEnvelope {
+    public static final String CONTENT_FIELD = "payload";
+    public static final String SENDER_FIELD = "sender";
+    public static final String CLIENT_MESSAGE_ID_FIELD = "cmid";
+    public static final String CONTENT_TYPE_FIELD = "type";
+
+    public static final String DEFAULT_CONTENT_TYPE = "text";
+
+    private final String senderId;
+    private final String clientMessageId;
+    private final String contentType;
+    private final String content;
+
+    public MessageEnvelope(String senderId, String clientMessageId, String contentType, String content) {
+        this.senderId = emptyToNull(senderId);
+        this.clientMessageId = emptyToNull(clientMessageId);
+        this.contentType = emptyToNull(contentType);
+        this.content = content;
+    }
+
+    public static MessageEnvelope text(String senderId, String content) {
+        return new MessageEnvelope(senderId, null, null, content);
+    }
+
+    public String getSenderId() {
+        return senderId;
+    }
+
+    public String getClientMessageId() {
+        return clientMessageId;
+    }
+
+    // The default type is left out of the entry and filled in when reading
+    public String getContentType() {
+        return contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    // Appends the entry's field count and field/value pairs, the layout the append script reads. The
+    // content comes first, where the script takes it from for the recent history.
+    void appendFields(List<String> args) {
+        int countIndex = args.size();
+        args.add(null);
+        int fields = 1;
+        args.add(CONTENT_FIELD);
+        args.add(content);
+        fields += appendField(args, SENDER_FIELD, senderId);
+        fields += appendField(args, CLIENT_MESSAGE_ID_FIELD, clientMessageId);
+        fields += appendField(args, CONTENT_TYPE_FIELD, contentType);
+        args.set(countIndex, String.valueOf(fields));
+    }
+
+    private static int appendField(List<String> args, String field, String value) {
+        if (value == null) {
+            return 0;
+        }
+        args.add(field);
+        args.add(value);
+        return 1;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,55 @@
+package com.chatstream.core.messageBroker.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+// Tells the storage service when a stream needs persisting. Streams are spread over shards; each shard
+// has a sorted set of flush deadlines and a hash counting the entries waiting to be persisted. A stream
+// becomes due persist_max_delay_ms after its first unpersisted entry, or at once when persist_batch_size
+// entries are waiting. The storage service reads only due streams of the shards it holds.
+//
+// The schedule is updated by RedisStreamService's append script, in the same call as the XADD; this class
+// holds its keys and settings.
+@Service
+public class PersistSchedule {
+
+    // Must match the storage service's settings
+    @Value("${flush_schedule_prefix:chatstream:flush}")
+    private String schedulePrefix;
+
+    @Value("${persist_shard_count:16}")
+    private int shardCount;
+
+    @Value("${persist_batch_size:500}")
+    private int batchSize;
+
+    @Value("${persist_max_delay_ms:5000}")
+    private long maxDelayMs;
+
+    // Sorted set of flush deadlines of the stream's shard
+    public String dueKey(String stream) {
+        return shardKey(stream) + ":due";
+    }
+
+    // Hash of unpersisted entry counts of the stream's shard
+    public String backlogKey(String stream) {
+        return shardKey(stream) + ":backlog";
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+    private String shardKey(String stream) {
+        return schedulePrefix + ":{" + shardOf(stream, shardCount) + "}";
+    }
+
+    // String.hashCode() is fixed by the language spec, so every service maps a stream to the same shard
+    public static int shardOf(String stream, int shardCount) {
+        return Math.floorMod(stream.hashCode(), shardCount);
+    }
+}
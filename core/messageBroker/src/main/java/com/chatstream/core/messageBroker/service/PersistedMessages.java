@@ -0,0 +1,79 @@
+package com.chatstream.core.messageBroker.service;
+
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+
+import java.util.Date;
+import java.util.Map;
+
+// Read side of what the storage service persisted from the streams, for entries already trimmed from
+// Redis. Entries come back as stream records, so callers treat them like ones read from Redis.
+@Service
+public class PersistedMessages {
+
+    // Written by the storage service; its (streamName, timestamp, entrySequence) index serves these reads.
+    // Messages sent through messageCRUDService have no stream fields and are not part of any stream.
+    private static final String COLLECTION = "messages";
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    public PersistedMessages(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    // Entries strictly between the two IDs, oldest first; a null bound leaves that side open
+    public Flux<MapRecord<String, String, String>> between(String stream, RecordId after, RecordId before, int limit) {
+        return find(stream, after, before, Sort.Direction.ASC, limit);
+    }
+
+    // Entries older than the given ID (or the newest ones when it is null), newest first
+    public Flux<MapRecord<String, String, String>> latestBefore(String stream, RecordId before, int limit) {
+        return find(stream, null, before, Sort.Direction.DESC, limit);
+    }
+
+    private Flux<MapRecord<String, String, String>> find(String stream, RecordId after, RecordId before,
+                                                         Sort.Direction direction, int limit) {
+        Criteria criteria = Criteria.where("streamName").is(stream);
+        if (after != null && before != null) {
+            criteria.andOperator(isAfter(after), isBefore(before));
+        } else if (after != null) {
+            criteria.andOperator(isAfter(after));
+        } else if (before != null) {
+            criteria.andOperator(isBefore(before));
+        }
+
+        Query query = Query.query(criteria)
+                .with(Sort.by(direction, "timestamp", "entrySequence"))
+                .limit(limit);
+        query.fields().include("timestamp", "entrySequence", "content");
+
+        return mongoTemplate.find(query, Document.class, COLLECTION)
+                .map(document -> StreamRecords.newRecord()
+                        .in(stream)
+                        .withId(RecordId.of(document.getDate("timestamp").getTime(), document.getLong("entrySequence")))
+                        .ofMap(Map.of(MessageEnvelope.CONTENT_FIELD, document.getString("content"))));
+    }
+
+    // The timestamp is the millisecond part of the entry ID
+    private static Criteria isAfter(RecordId id) {
+        Date timestamp = new Date(id.getTimestamp());
+        return new Criteria().orOperator(
+                Criteria.where("timestamp").gt(timestamp),
+                Criteria.where("timestamp").is(timestamp).and("entrySequence").gt(id.getSequence()));
+    }
+
+    private static Criteria isBefore(RecordId id) {
+        Date timestamp = new Date(id.getTimestamp());
+        return new Criteria().orOperator(
+                Criteria.where("timestamp").lt(timestamp),
+                Criteria.where("timestamp").is(timestamp).and("entrySequence").lt(id.getSequence()));
+    }
+}
@@ -0,0 +1,144 @@
+package com.chatstream.core.messageBroker.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The most recent messages of each active room, kept in a capped Redis list (newest first) so clients
+// that reconnect are served from memory. Lists of rooms idle for recent_history_ttl_ms expire. Publishes
+// add to the list in RedisStreamService's append script, as "<entry id>:<message>", and the storage
+// service's flush fills it when the room has none. A read that finds fewer messages than asked for
+// continues in what the storage service persisted, and puts those messages into the list when it was
+// empty, so the next reader of a room nobody wrote to since it went cold hits memory as well. Older
+// pages are read with a before cursor, the ID of the oldest message of the previous page.
+@Service
+public class RecentHistory {
+
+    // ARGV: capacity, ttl, then the entries newest first. Skipped if a publish filled the list meanwhile.
+    private static final RedisScript<Long> WARM_SCRIPT = RedisScript.of("""
+            if redis.call('LLEN', KEYS[1]) > 0 then
+                return 0
+            end
+            for i = 3, #ARGV do
+                redis.call('RPUSH', KEYS[1], ARGV[i])
+            end
+            redis.call('LTRIM', KEYS[1], 0, tonumber(ARGV[1]) - 1)
+            redis.call('PEXPIRE', KEYS[1], ARGV[2])
+            return 1
+            """, Long.class);
+
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final PersistedMessages persistedMessages;
+
+    @Value("${recent_history_key_prefix:chatstream:recent}")
+    private String keyPrefix;
+
+    @Value("${recent_history_capacity:200}")
+    private int capacity;
+
+    @Value("${recent_history_ttl_ms:3600000}")
+    private long ttlMs;
+
+    // Upper bound on one read, most of which may have to come from MongoDB
+    @Value("${recent_history_max_count:1000}")
+    private int maxCount;
+
+    public RecentHistory(ReactiveRedisTemplate<String, String> redisTemplate, PersistedMessages persistedMessages) {
+        this.redisTemplate = redisTemplate;
+        this.persistedMessages = persistedMessages;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    // Newest first, each as {id, message}; only messages older than before when it is set
+    public Flux<Map<String, String>> recent(String stream, int requested, RecordId before) {
+        int count = Math.min(Math.max(requested, 1), maxCount);
+        // Without a cursor the page is the head of the list; with one it may start anywhere in it
+        long last = before == null ? count - 1 : -1;
+        return redisTemplate.opsForList().range(key(stream), 0, last)
+                .collectList()
+                .flatMapMany(list -> {
+                    List<Map<String, String>> cached = new ArrayList<>(Math.min(list.size(), count));
+                    for (String encoded : list) {
+                        Map<String, String> entry = decode(encoded);
+                        if (before != null && !isOlder(RecordId.of(entry.get("id")), before)) {
+                            continue;
+                        }
+                        if (cached.size() == count) {
+                            break;
+                        }
+                        cached.add(entry);
+                    }
+                    if (cached.size() >= count) {
+                        return Flux.fromIterable(cached);
+                    }
+
+                    RecordId olderThan = cached.isEmpty()
+                            ? before
+                            : RecordId.of(cached.get(cached.size() - 1).get("id"));
+                    return persistedMessages.latestBefore(stream, olderThan, count - cached.size())
+                            .map(record -> entry(record.getId().getValue(),
+                                    record.getValue().get(MessageEnvelope.CONTENT_FIELD)))
+                            .collectList()
+                            .flatMapMany(persisted -> {
+                                Mono<Void> warm = list.isEmpty() && before == null && !persisted.isEmpty()
+                                        ? warm(stream, persisted)
+                                        : Mono.empty();
+                                return warm.thenMany(Flux.concat(
+                                        Flux.fromIterable(cached), Flux.fromIterable(persisted)));
+                            });
+                });
+    }
+
+    private static boolean isOlder(RecordId id, RecordId than) {
+        return id.getTimestamp() < than.getTimestamp()
+                || (id.getTimestamp() == than.getTimestamp() && id.getSequence() < than.getSequence());
+    }
+
+    private Mono<Void> warm(String stream, List<Map<String, String>> newestFirst) {
+        List<String> args = new ArrayList<>(newestFirst.size() + 2);
+        args.add(String.valueOf(capacity));
+        args.add(String.valueOf(ttlMs));
+        newestFirst.forEach(entry -> args.add(encode(entry.get("id"), entry.get("message"))));
+
+        return redisTemplate.execute(WARM_SCRIPT, List.of(key(stream)), args)
+                .then()
+                .onErrorResume(error -> Mono.empty());
+    }
+
+    public String key(String stream) {
+        return keyPrefix + ":" + stream;
+    }
+
+    // Entry IDs never contain ':', so the first one separates the ID from the message
+    private static String encode(String id, String message) {
+        return id + ":" + message;
+    }
+
+    private static Map<String, String> decode(String encoded) {
+        int separator = encoded.indexOf(':');
+        return entry(encoded.substring(0, separator), encoded.substring(separator + 1));
+    }
+
+    private static Map<String, String> entry(String id, String message) {
+        Map<String, String> entry = new LinkedHashMap<>();
+        entry.put("id", id);
+        entry.put("message", message);
+        return entry;
+    }
+}
@@ -1,17 +1,30 @@
 package com.chatstream.core.messageBroker.service;
 
+import com.chatstream.core.messageBroker.metrics.BrokerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.stream.Consumer;
 import org.springframework.data.redis.connection.stream.ObjectRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.connection.stream.StreamOffset;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.ReactiveStreamOperations;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.connection.stream.MapRecord;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.data.redis.stream.StreamReceiver;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -19,45 +32,282 @@ import java.util.concurrent.ConcurrentHashMap;
 @Service
 public class RedisStreamService {
 
+    private static final Logger log = LoggerFactory.getLogger(RedisStreamService.class);
+
+    // The whole publish in one call: appends the messages in order, caps the stream at about ARGV[1]
+    // entries, and records them everywhere else a publish has to show up:
+    //  - the stream registry the storage service discovers streams from (SADD),
+    //  - the persist schedule: the stream's unpersisted count and, if earlier, its flush deadline, which is
+    //    now (ARGV[2]) + max delay (ARGV[3]), or now once batch size (ARGV[4]) entries are waiting,
+    //  - the room's recent history list, capped at ARGV[5] entries and expiring after ARGV[6] ms.
+    // Redis trims whole radix tree nodes with "~", which frees memory instead of leaving the tombstones
+    // XDEL does. From ARGV[7] on, each message is its field count followed by that many field/value pairs,
+    // content first (see MessageEnvelope).
+    // KEYS: stream, registry, due, backlog, recent history. The keys live in different hash slots, so this
+    // needs a single Redis node (or replicas/sentinel) rather than Redis Cluster.
+    //
+    // Returns the entry IDs, then the ID of the entry that was newest before them ('' for an empty stream),
+    // then how many entries this call's XADDs trimmed. The storage service trims what it has persisted, so
+    // the cap only removes entries once persisting has fallen behind, and those were most likely never
+    // persisted.
+    private static final RedisScript<List> PUBLISH_SCRIPT = RedisScript.of("""
+            local maxLength = tonumber(ARGV[1])
+            local before = redis.call('XLEN', KEYS[1])
+            local newest = redis.call('XREVRANGE', KEYS[1], '+', '-', 'COUNT', 1)
+            local result = {}
+            local i = 7
+            while i <= #ARGV do
+                local last = i + 2 * tonumber(ARGV[i])
+                local id = redis.call('XADD', KEYS[1], 'MAXLEN', '~', maxLength, '*', unpack(ARGV, i + 1, last))
+                result[#result + 1] = id
+                redis.call('LPUSH', KEYS[5], id .. ':' .. ARGV[i + 2])
+                i = last + 1
+            end
+            local added = #result
+            result[added + 1] = newest[1] and newest[1][1] or ''
+            result[added + 2] = before + added - redis.call('XLEN', KEYS[1])
+            if added == 0 then
+                return result
+            end
+
+            redis.call('SADD', KEYS[2], KEYS[1])
+
+            local backlog = redis.call('HINCRBY', KEYS[4], KEYS[1], added)
+            local now = tonumber(ARGV[2])
+            local deadline = now + tonumber(ARGV[3])
+            if backlog >= tonumber(ARGV[4]) then
+                deadline = now
+            end
+            local current = redis.call('ZSCORE', KEYS[3], KEYS[1])
+            if not current or deadline < tonumber(current) then
+                redis.call('ZADD', KEYS[3], deadline, KEYS[1])
+            end
+
+            redis.call('LTRIM', KEYS[5], 0, tonumber(ARGV[5]) - 1)
+            redis.call('PEXPIRE', KEYS[5], ARGV[6])
+            return result
+            """, List.class);
+
     private final ReactiveRedisTemplate<String, String> redisTemplate;
     private final ReactiveStreamOperations<String, String, String> streamOps;
-    private final MongoMessageService mongoMessageService;
-    private final Map<String, Long> activeStreams = new ConcurrentHashMap<>();
+    private final StreamReceiver<String, MapRecord<String, String, String>> streamReceiver;
+    private final PersistSchedule persistSchedule;
+    private final RecentHistory recentHistory;
+    private final PersistedMessages persistedMessages;
+    private final BrokerMetrics metrics;
+    // Consumer group deletions still in flight, per stream; a new reader of the stream waits for them
+    private final Map<String, Mono<Void>> releases = new ConcurrentHashMap<>();
+
+    // Redis set the storage service discovers streams to persist from
+    @Value("${stream_registry_key:chatstream:streams}")
+    private String registryKey;
+
+    // Identifies this broker instance; every node reads through its own consumer group
+    @Value("${broker_node_id:${HOSTNAME:localhost}-${server.port:8081}}")
+    private String nodeId;
+
+    // Pending entries idle for longer than this are reclaimed when a reader (re)starts
+    @Value("${stream_pending_min_idle_ms:30000}")
+    private long pendingMinIdleMs;
+
+    @Value("${stream_pending_reclaim_count:100}")
+    private long pendingReclaimCount;
 
-    // @Value("${stream_batch_size:100}")
-    private final int streamBatchSize = 10;
+    // Safety cap on entries per stream, normally never reached as the storage service trims what it has
+    // persisted. Only hit when persisting falls behind, and then the oldest unpersisted entries are lost.
+    @Value("${stream_max_length:100000}")
+    private long maxLength;
 
-    @Value("${stream_flush_interval_ms:60000}")
-    private int flushIntervalMs; // Default 1 minute
+    // Per-stream caps, e.g. stream_max_length_overrides={'lobby': 500000}
+    @Value("#{${stream_max_length_overrides:{:}}}")
+    private Map<String, Long> maxLengthOverrides;
 
     public RedisStreamService(ReactiveRedisTemplate<String, String> redisTemplate,
-                              MongoMessageService mongoMessageService) {
+                              ReactiveRedisConnectionFactory connectionFactory,
+                              PersistSchedule persistSchedule,
+                              RecentHistory recentHistory,
+                              PersistedMessages persistedMessages,
+                              BrokerMetrics metrics,
+                              @Value("${stream_read_batch_size:100}") int readBatchSize,
+                              @Value("${stream_poll_timeout_ms:2000}") long pollTimeoutMs) {
         this.redisTemplate = redisTemplate;
         this.streamOps = redisTemplate.opsForStream();
-        this.mongoMessageService = mongoMessageService;
+        this.persistSchedule = persistSchedule;
+        this.recentHistory = recentHistory;
+        this.persistedMessages = persistedMessages;
+        this.metrics = metrics;
+        this.streamReceiver = StreamReceiver.create(connectionFactory,
+                StreamReceiver.StreamReceiverOptions.builder()
+                        .batchSize(readBatchSize)
+                        .pollTimeout(Duration.ofMillis(pollTimeoutMs))
+                        .build());
     }
 
-    public Mono<String> publishMessage(String stream, String message) {
-        // Track active streams for scheduled flushing
-        activeStreams.putIfAbsent(stream, System.currentTimeMillis());
-
-        return streamOps.add(ObjectRecord.create(stream, message))
-                .doOnNext(recordId -> System.out.println("Message published: " + message + " with ID: " + recordId))
+    public Mono<String> publishMessage(String stream, MessageEnvelope message) {
+        return appendMessage(stream, message)
+                .map(appended -> appended.getIds().get(0))
                 .map(recordId -> "Message published to " + stream + " with ID: " + recordId);
     }
 
+    // Appends one message; the result holds the entry ID Redis assigned to it
+    public Mono<AppendedEntries> appendMessage(String stream, MessageEnvelope message) {
+        return metrics.timePublish("single", 1, metrics.timeRedis("XADD", append(stream, List.of(message))));
+    }
+
+    // Appends all messages in order in one script call, so a batch costs a single round trip
+    public Mono<AppendedEntries> publishMessages(String stream, List<MessageEnvelope> messages) {
+        return metrics.timePublish("batch", messages.size(), metrics.timeRedis("XADD_BATCH", append(stream, messages)));
+    }
+
+    private Mono<AppendedEntries> append(String stream, List<MessageEnvelope> messages) {
+        List<String> args = new ArrayList<>(messages.size() * 9 + 6);
+        args.add(String.valueOf(maxLengthOverrides.getOrDefault(stream, maxLength)));
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(String.valueOf(persistSchedule.getMaxDelayMs()));
+        args.add(String.valueOf(persistSchedule.getBatchSize()));
+        args.add(String.valueOf(recentHistory.getCapacity()));
+        args.add(String.valueOf(recentHistory.getTtlMs()));
+        messages.forEach(message -> message.appendFields(args));
+        List<String> keys = List.of(stream, registryKey, persistSchedule.dueKey(stream),
+                persistSchedule.backlogKey(stream), recentHistory.key(stream));
+
+        return redisTemplate.execute(PUBLISH_SCRIPT, keys, args)
+                .next()
+                .map(result -> {
+                    long trimmedUnpersisted = (Long) result.get(result.size() - 1);
+                    if (trimmedUnpersisted > 0) {
+                        metrics.trimmedUnpersisted(trimmedUnpersisted);
+                    }
+                    List<String> ids = new ArrayList<>(result.size() - 2);
+                    for (int i = 0; i < result.size() - 2; i++) {
+                        ids.add((String) result.get(i));
+                    }
+                    String previousId = (String) result.get(result.size() - 2);
+                    return new AppendedEntries(ids, previousId.isEmpty() ? null : previousId);
+                });
+    }
+
     public Flux<ObjectRecord<String, String>> consumeMessages(String stream) {
-        // Track active streams for scheduled flushing
-        activeStreams.putIfAbsent(stream, System.currentTimeMillis());
+        return toObjectRecords(stream, streamOps.read(StreamOffset.fromStart(stream)));
+    }
 
-        return streamOps.read(StreamOffset.fromStart(stream))
+    // Resumes after an entry the caller has already seen, including entries only MongoDB still has
+    public Flux<ObjectRecord<String, String>> consumeMessagesAfter(String stream, RecordId lastId, int pageSize) {
+        return toObjectRecords(stream, replayAfter(stream, lastId, pageSize));
+    }
+
+    private static Flux<ObjectRecord<String, String>> toObjectRecords(String stream,
+                                                                      Flux<MapRecord<String, String, String>> records) {
+        return records
                 .map(mapRecord -> {
-                    String value = mapRecord.getValue().values().iterator().next();
-                    System.out.println("Received from " + stream + ": " + value);
-                    return ObjectRecord.create(stream, value);
+                    String value = mapRecord.getValue().get(MessageEnvelope.CONTENT_FIELD);
+                    // Keeps the entry ID, which clients resume from
+                    return ObjectRecord.create(stream, value).withId(mapRecord.getId());
+                });
+    }
+
+    // Everything after the given entry, oldest first, read page by page until the end of the stream
+    public Flux<MapRecord<String, String, String>> replayAfter(String stream, RecordId after, int pageSize) {
+        return entriesAfter(stream, after, pageSize)
+                .expand(page -> page.isEmpty()
+                        ? Mono.empty()
+                        : entriesAfter(stream, page.get(page.size() - 1).getId(), pageSize))
+                .flatMapIterable(page -> page);
+    }
+
+    // Up to count entries following the given one, oldest first; empty once the stream has nothing newer.
+    // The range starts at the entry itself: if Redis still has it, nothing after it can have been trimmed.
+    // Otherwise the entries between it and the oldest one left in Redis are read from MongoDB first.
+    public Mono<List<MapRecord<String, String, String>>> entriesAfter(String stream, RecordId after, int count) {
+        return streamOps.range(stream, Range.rightUnbounded(Range.Bound.inclusive(after.getValue())),
+                        Limit.limit().count(count + 1))
+                .collectList()
+                .flatMap(page -> {
+                    if (!page.isEmpty() && page.get(0).getId().equals(after)) {
+                        return Mono.just(page.subList(1, page.size()));
+                    }
+
+                    RecordId oldestInRedis = page.isEmpty() ? null : page.get(0).getId();
+                    return persistedMessages.between(stream, after, oldestInRedis, count)
+                            .collectList()
+                            .map(persisted -> persisted.isEmpty()
+                                    ? page.subList(0, Math.min(page.size(), count))
+                                    : persisted);
                 });
     }
 
+    // Live tail of a stream for this node: one blocking XREADGROUP loop per stream, started from the
+    // newest entry. Entries left unacknowledged by a previous run are reclaimed first. Callers must
+    // acknowledge() each record once it has been handed to local subscribers.
+    public Flux<MapRecord<String, String, String>> tailStream(String stream) {
+        Consumer consumer = Consumer.from(consumerGroup(), nodeId);
+
+        return Mono.defer(() -> releases.getOrDefault(stream, Mono.empty()))
+                .then(ensureConsumerGroup(stream, ReadOffset.latest()))
+                .thenMany(Flux.concat(
+                        reclaimPending(stream, consumer),
+                        streamReceiver.receive(consumer, StreamOffset.create(stream, ReadOffset.lastConsumed()))))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30)));
+    }
+
+    // Drops this node's consumer group once nobody on the node reads the stream any more, so the next
+    // reader starts from the newest entry instead of replaying what was published in between. The deletion
+    // starts right away; a reader started for the stream before it completes waits for it, so it cannot
+    // remove the group that reader has just created.
+    public Mono<Void> stopTailing(String stream) {
+        Mono<Void> release = streamOps.destroyGroup(stream, consumerGroup())
+                .onErrorResume(error -> Mono.empty())
+                .then()
+                .cache();
+        releases.put(stream, release);
+        release.doFinally(signal -> releases.remove(stream, release)).subscribe();
+        return release;
+    }
+
+    public Mono<Long> acknowledge(String stream, MapRecord<String, String, String> record) {
+        return streamOps.acknowledge(stream, consumerGroup(), record.getId());
+    }
+
+    public String payloadOf(MapRecord<String, String, String> record) {
+        return record.getValue().get(MessageEnvelope.CONTENT_FIELD);
+    }
+
+    public String consumerGroup() {
+        return "broker:" + nodeId;
+    }
+
+    private Mono<String> ensureConsumerGroup(String stream, ReadOffset offset) {
+        return streamOps.createGroup(stream, offset, consumerGroup())
+                .onErrorResume(RedisStreamService::isBusyGroup, error -> Mono.just("OK"));
+    }
+
+    // XAUTOCLAIM equivalent built from XPENDING + XCLAIM, which is what the reactive template exposes
+    private Flux<MapRecord<String, String, String>> reclaimPending(String stream, Consumer consumer) {
+        Duration minIdle = Duration.ofMillis(pendingMinIdleMs);
+
+        return streamOps.pending(stream, consumer.getGroup(), Range.unbounded(), pendingReclaimCount)
+                .flatMapMany(pending -> {
+                    RecordId[] ids = pending.stream()
+                            .filter(message -> message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0)
+                            .map(PendingMessage::getId)
+                            .toArray(RecordId[]::new);
+                    if (ids.length == 0) {
+                        return Flux.empty();
+                    }
+                    return streamOps.claim(stream, consumer.getGroup(), consumer.getName(), minIdle, ids);
+                });
+    }
+
+    private static boolean isBusyGroup(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("BUSYGROUP")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public Flux<Map<String, String>> fetchNMessages(String stream, long count) {
         return streamOps.range(stream, Range.unbounded())
                 .take(count) // Limit the number of messages to N
@@ -71,82 +321,12 @@ public class RedisStreamService {
     }
 
     public Mono<Long> getStreamLength(String stream) {
-        return streamOps.size(stream);
+        return metrics.timeRedis("XLEN", streamOps.size(stream));
     }
 
+    // XTRIM to zero frees the stream's nodes at once, where deleting every ID would leave tombstones
     public Mono<Long> clearStream(String streamName) {
-        return streamOps.size(streamName)
-                .flatMap(size -> {
-                    if (size == 0) {
-                        return Mono.just(0L);
-                    }
-                    // Get all message IDs first
-                    return streamOps.range(streamName, Range.unbounded())
-                            .map(message -> message.getId().getValue())
-                            .collectList()
-                            .flatMap(ids -> {
-                                if (ids.isEmpty()) {
-                                    return Mono.just(0L);
-                                }
-                                // Delete all messages by their IDs
-                                return streamOps.delete(streamName, ids.toArray(new String[0]))
-                                        .map(deleted -> (long) ids.size())
-                                        .doOnSuccess(deleted ->
-                                                System.out.println("Cleared stream: " + streamName + ", deleted messages: " + deleted));
-                            });
-                });
-    }
-
-    // Method to process stream batch and save to MongoDB
-
-    public Mono<Void> processBatch(String stream) {
-        return getStreamLength(stream)
-                .flatMap(length -> {
-                    if (length == 0) {
-                        return Mono.empty().then(); // Convert to Mono<Void>
-                    }
-
-                    System.out.println("Processing batch for stream: " + stream + " with length: " + length);
-                    return fetchNMessages(stream, length)
-                            .collectList()
-                            .flatMap(messages -> {
-                                if (messages.isEmpty()) {
-                                    return Mono.empty().then(); // Convert to Mono<Void>
-                                }
-
-                                // Save messages to MongoDB
-                                return mongoMessageService.saveStreamMessages(stream, messages)
-                                        .then(clearStream(stream))
-                                        .doOnSuccess(cleared -> {
-                                            System.out.println("Batch processed and cleared for stream: " + stream);
-                                            // Update last processed time
-                                            activeStreams.put(stream, System.currentTimeMillis());
-                                        })
-                                        .then(); // Ensure we return Mono<Void>
-                            });
-                });
-    }
-
-    // Check streams on schedule and flush if they meet criteria
-    @Scheduled(fixedDelayString = "${stream_check_interval_ms:10000}")
-    public void checkAndFlushStreams() {
-        long currentTime = System.currentTimeMillis();
-
-        activeStreams.forEach((stream, lastProcessed) -> {
-            // Check if elapsed time exceeds flush interval
-            if (currentTime - lastProcessed > flushIntervalMs) {
-                System.out.println("Time-based flush triggered for stream: " + stream);
-                processBatch(stream).subscribe();
-            } else {
-                // Check if size exceeds batch size
-                getStreamLength(stream)
-                        .filter(size -> size >= streamBatchSize)
-                        .flatMap(size -> {
-                            System.out.println("Size-based flush triggered for stream: " + stream);
-                            return processBatch(stream);
-                        })
-                        .subscribe();
-            }
-        });
+        return streamOps.trim(streamName, 0)
+                .doOnSuccess(deleted -> log.info("Cleared stream {}, deleted {} messages", streamName, deleted));
     }
 }
\ No newline at end of file
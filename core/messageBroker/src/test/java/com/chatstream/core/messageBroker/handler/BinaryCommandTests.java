@@ -0,0 +1,128 @@
+package com.chatstream.core.messageBroker.handler;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class BinaryCommandTests {
+
+	@Test
+	void parsesSubscribeWithLastId() {
+		BinaryCommand command = BinaryCommand.fromBinary(frame(BinaryCommand.SUBSCRIBE_OPCODE,
+				shortString("room-1"), ascii("1700000000000-0")));
+
+		assertThat(command.getOpcode()).isEqualTo(BinaryCommand.SUBSCRIBE_OPCODE);
+		assertThat(command.getStream()).isEqualTo("room-1");
+		assertThat(command.getLastId()).isEqualTo("1700000000000-0");
+	}
+
+	@Test
+	void parsesSubscribeWithoutLastId() {
+		BinaryCommand command = BinaryCommand.fromBinary(frame(BinaryCommand.SUBSCRIBE_OPCODE, shortString("room-1")));
+
+		assertThat(command.getLastId()).isNull();
+	}
+
+	@Test
+	void parsesSendWithOptionalFieldsAndMultiByteContent() {
+		BinaryCommand command = BinaryCommand.fromBinary(frame(BinaryCommand.SEND_OPCODE, shortString("room-1"),
+				byteString("c-42"), byteString(""), utf8("héllo\nwörld")));
+
+		assertThat(command.getClientMessageId()).isEqualTo("c-42");
+		assertThat(command.getContentType()).isEmpty();
+		assertThat(command.getMessage()).isEqualTo("héllo\nwörld");
+	}
+
+	@Test
+	void rejectsEmptyFrame() {
+		assertThatIllegalArgumentException().isThrownBy(() -> BinaryCommand.fromBinary(buffer(new byte[0])));
+	}
+
+	@Test
+	void rejectsUnknownOpcode() {
+		assertThatIllegalArgumentException().isThrownBy(() -> BinaryCommand.fromBinary(frame((byte) 0x7F,
+				shortString("room-1"))));
+	}
+
+	@Test
+	void rejectsTruncatedStreamLength() {
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> BinaryCommand.fromBinary(frame(BinaryCommand.PUBLISH_OPCODE, new byte[] {0})))
+				.withMessage("Truncated binary frame");
+	}
+
+	@Test
+	void rejectsStreamLengthBeyondFrame() {
+		byte[] oversized = {(byte) 0xFF, (byte) 0xFF, 'r', 'o', 'o', 'm'};
+
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> BinaryCommand.fromBinary(frame(BinaryCommand.PUBLISH_OPCODE, oversized)))
+				.withMessage("Truncated binary frame");
+	}
+
+	@Test
+	void rejectsSendTruncatedInsideClientMessageId() {
+		byte[] clientMessageId = {10, 'c', '-'};
+
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> BinaryCommand.fromBinary(frame(BinaryCommand.SEND_OPCODE, shortString("room-1"),
+						clientMessageId)))
+				.withMessage("Truncated binary frame");
+	}
+
+	@Test
+	void rejectsMissingStreamAndMessage() {
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> BinaryCommand.fromBinary(frame(BinaryCommand.PUBLISH_OPCODE, shortString(""),
+						utf8("hi"))))
+				.withMessage("Missing stream name");
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> BinaryCommand.fromBinary(frame(BinaryCommand.PUBLISH_OPCODE, shortString("room-1"))))
+				.withMessage("Missing message content");
+	}
+
+	static DataBuffer frame(byte opcode, byte[]... parts) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(opcode);
+		for (byte[] part : parts) {
+			bytes.writeBytes(part);
+		}
+		return buffer(bytes.toByteArray());
+	}
+
+	static DataBuffer buffer(byte[] bytes) {
+		return DefaultDataBufferFactory.sharedInstance.wrap(bytes);
+	}
+
+	static byte[] shortString(String value) {
+		byte[] bytes = utf8(value);
+		return concat(new byte[] {(byte) (bytes.length >>> 8), (byte) bytes.length}, bytes);
+	}
+
+	static byte[] byteString(String value) {
+		byte[] bytes = utf8(value);
+		return concat(new byte[] {(byte) bytes.length}, bytes);
+	}
+
+	static byte[] utf8(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	static byte[] concat(byte[] first, byte[] second) {
+		byte[] joined = new byte[first.length + second.length];
+		System.arraycopy(first, 0, joined, 0, first.length);
+		System.arraycopy(second, 0, joined, first.length, second.length);
+		return joined;
+	}
+
+}
@@ -0,0 +1,71 @@
+package com.chatstream.core.messageBroker.handler;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.util.List;
+
+import static com.chatstream.core.messageBroker.handler.BinaryCommandTests.concat;
+import static com.chatstream.core.messageBroker.handler.BinaryCommandTests.frame;
+import static com.chatstream.core.messageBroker.handler.BinaryCommandTests.shortString;
+import static com.chatstream.core.messageBroker.handler.BinaryCommandTests.utf8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class PublishBatchFrameTests {
+
+	@Test
+	void binaryRoundTripKeepsOrderAndMultiByteContent() {
+		PublishBatchFrame sent = new PublishBatchFrame("room-1", List.of("first", "zwéi\nlines", ""));
+
+		PublishBatchFrame received = PublishBatchFrame.fromBinary(
+				sent.toBinary(DefaultDataBufferFactory.sharedInstance));
+
+		assertThat(received.getStream()).isEqualTo("room-1");
+		assertThat(received.getMessages()).containsExactly("first", "zwéi\nlines", "");
+	}
+
+	@Test
+	void textSkipsEmptyLines() {
+		PublishBatchFrame frame = PublishBatchFrame.fromText("room-1", "a\n\nb\n");
+
+		assertThat(frame.getMessages()).containsExactly("a", "b");
+	}
+
+	@Test
+	void rejectsOtherOpcodeAndShortHeader() {
+		assertThatIllegalArgumentException().isThrownBy(() -> PublishBatchFrame.fromBinary(
+				frame(BinaryCommand.PUBLISH_OPCODE, shortString("room-1"))));
+		assertThatIllegalArgumentException().isThrownBy(() -> PublishBatchFrame.fromBinary(
+				frame(PublishBatchFrame.BINARY_OPCODE, new byte[] {0})));
+	}
+
+	@Test
+	void rejectsTruncatedMessageLength() {
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> PublishBatchFrame.fromBinary(frame(PublishBatchFrame.BINARY_OPCODE,
+						shortString("room-1"), new byte[] {0, 0})))
+				.withMessage("Truncated binary frame");
+	}
+
+	@Test
+	void rejectsMessageLengthBeyondFrame() {
+		byte[] message = concat(new byte[] {0, 0, 0, 9}, utf8("short"));
+
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> PublishBatchFrame.fromBinary(frame(PublishBatchFrame.BINARY_OPCODE,
+						shortString("room-1"), message)))
+				.withMessage("Truncated binary frame");
+	}
+
+	@Test
+	void rejectsLengthOverflowingInt() {
+		byte[] message = concat(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, utf8("x"));
+
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> PublishBatchFrame.fromBinary(frame(PublishBatchFrame.BINARY_OPCODE,
+						shortString("room-1"), message)))
+				.withMessage("Truncated binary frame");
+	}
+
+}
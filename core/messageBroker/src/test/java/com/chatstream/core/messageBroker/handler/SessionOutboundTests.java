@@ -0,0 +1,75 @@
+package com.chatstream.core.messageBroker.handler;
+
+import com.chatstream.core.messageBroker.metrics.BrokerMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SessionOutboundTests {
+
+	private final WebSocketSession session = mock(WebSocketSession.class);
+	private final SessionOutbound outbound = new SessionOutbound(session, FrameProtocol.TEXT,
+			new SessionOutbound.Options(2, SessionOutbound.OverflowPolicy.DROP_OLDEST, 0, 1024),
+			new BrokerMetrics(new SimpleMeterRegistry()));
+
+	SessionOutboundTests() {
+		when(session.close(any(CloseStatus.class))).thenReturn(Mono.empty());
+	}
+
+	@Test
+	void writesTheFinalReplyBeforeClosing() {
+		CloseStatus status = CloseStatus.SERVER_ERROR.withReason("Replay failed");
+		outbound.emit(utf8("MESSAGE:a"));
+		outbound.emitReply(FrameProtocol.TEXT.encodeReply(false, "Replay failed"));
+		outbound.closeAfterQueued(status);
+		outbound.emit(utf8("MESSAGE:b"));
+
+		StepVerifier.create(outbound.asFlux().map(frame -> new String(frame, StandardCharsets.UTF_8)), 0)
+				.thenRequest(1)
+				.expectNext("MESSAGE:a")
+				.then(() -> verify(session, never()).close(any(CloseStatus.class)))
+				.thenRequest(1)
+				.expectNextMatches(reply -> reply.startsWith("ERROR"))
+				.verifyComplete();
+
+		outbound.finish().block();
+		verify(session).close(status);
+	}
+
+	@Test
+	void finishesWithoutClosingWhenNoCloseWasAskedFor() {
+		outbound.finish().block();
+
+		verify(session, never()).close(any(CloseStatus.class));
+	}
+
+	@Test
+	void keepsRepliesWhenDroppingTheOldestMessages() {
+		outbound.emit(utf8("MESSAGE:a"));
+		outbound.emitReply(FrameProtocol.TEXT.encodeReply(true, "Published"));
+		outbound.emit(utf8("MESSAGE:b"));
+		outbound.emit(utf8("MESSAGE:c"));
+		outbound.closeAfterQueued(CloseStatus.NORMAL);
+
+		StepVerifier.create(outbound.asFlux().map(frame -> new String(frame, StandardCharsets.UTF_8)))
+				.expectNextMatches(reply -> reply.startsWith("SUCCESS"))
+				.expectNext("MESSAGE:b", "MESSAGE:c")
+				.verifyComplete();
+	}
+
+	private static byte[] utf8(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
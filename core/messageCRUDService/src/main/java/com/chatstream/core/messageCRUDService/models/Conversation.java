@@ -5,20 +5,62 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
 
 @Data
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "conversations")
+// A user's inbox is a range read on this (multikey) index
+@CompoundIndex(name = "participant_updated", def = "{'participantIds': 1, 'updatedAt': -1, '_id': -1}")
 public class Conversation {
     @Id
     private String id;
     private String type;
+    // The storage service finds a room's conversation by it when persisting the room's stream
+    @Indexed
     private String roomId;
+    // Copied from the room's members and kept in step with them by ChatService
+    private List<String> participantIds;
     private String lastMessage;
+    private String lastMessageSenderId;
     private LocalDateTime updatedAt;
+
+    // Counters kept up to date as messages are stored, so the inbox needs no message reads. Unread for a
+    // user is what was posted minus what they sent themselves minus what they had read.
+    private long messageCount;
+    // counterKey(userId) -> messages sent by that user
+    private Map<String, Long> sentCounts;
+    // counterKey(userId) -> messages from others that the user had read, as of their last markMessagesAsRead
+    private Map<String, Long> readCounts;
+
+    public long unreadCountFor(String userId) {
+        String key = counterKey(userId);
+        long sent = sentCounts == null ? 0 : sentCounts.getOrDefault(key, 0L);
+        long read = readCounts == null ? 0 : readCounts.getOrDefault(key, 0L);
+        return Math.max(messageCount - sent - read, 0);
+    }
+
+    // User IDs come from clients and end up in field paths ("sentCounts.<key>"), where '.' would nest
+    // and '$' would be read as an operator. Percent-escapes those (and '%' and NUL), which leaves ordinary
+    // IDs unchanged. The storage service writes sentCounts with the same escaping.
+    public static String counterKey(String userId) {
+        StringBuilder key = new StringBuilder(userId.length());
+        for (int i = 0; i < userId.length(); i++) {
+            char c = userId.charAt(i);
+            if (c == '%' || c == '.' || c == '$' || c == '\0') {
+                key.append('%').append(String.format("%02X", (int) c));
+            } else {
+                key.append(c);
+            }
+        }
+        return key.toString();
+    }
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
@@ -14,12 +15,18 @@ import java.time.LocalDateTime;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "messages")
+// History pages are range reads on this index; _id breaks ties between messages with the same timestamp
+@CompoundIndex(name = "conversation_timestamp", def = "{'conversationId': 1, 'timestamp': -1, '_id': -1}")
 public class Message {
     @Id
     private String id;
     private String conversationId;
     private String senderId;
     private String content;
+    // "text" unless the sender says otherwise
+    private String contentType;
+    // Set by clients that publish through the broker, which retry with the same ID; the storage service
+    // keeps one message per (conversation, sender, client message ID)
+    private String clientMessageId;
     private LocalDateTime timestamp;
-    private boolean readStatus;
 }
\ No newline at end of file
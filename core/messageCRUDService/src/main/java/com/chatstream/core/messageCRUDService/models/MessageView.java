@@ -0,0 +1,22 @@
+package com.chatstream.core.messageCRUDService.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+
+import java.time.LocalDateTime;
+
+// The fields of a message a client renders in the history view; history pages are read as this
+// projection instead of whole Message documents
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageView {
+    @Id
+    private String id;
+    private String senderId;
+    private String content;
+    private String contentType;
+    private LocalDateTime timestamp;
+}
@@ -1,28 +1,40 @@
 package com.chatstream.core.messageCRUDService.services;
 
+import com.chatstream.core.messageCRUDService.models.Conversation;
 import com.chatstream.core.messageCRUDService.models.GroupChat;
 import com.chatstream.core.messageCRUDService.models.SingleChat;
 import com.chatstream.core.messageCRUDService.repository.GroupChatRepository;
 import com.chatstream.core.messageCRUDService.repository.SingleChatRepository;
 import com.chatstream.core.messageCRUDService.repository.UserRepository;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Set;
 
 @Service
 public class ChatService {
     private final SingleChatRepository singleChatRepository;
     private final GroupChatRepository groupChatRepository;
     private final UserRepository userRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final RoomMembershipCache membershipCache;
 
     public ChatService(SingleChatRepository singleChatRepository,
                        GroupChatRepository groupChatRepository,
-                       UserRepository userRepository) {
+                       UserRepository userRepository,
+                       ReactiveMongoTemplate mongoTemplate,
+                       RoomMembershipCache membershipCache) {
         this.singleChatRepository = singleChatRepository;
         this.groupChatRepository = groupChatRepository;
         this.userRepository = userRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.membershipCache = membershipCache;
     }
 
     // Single Chat operations
@@ -37,7 +49,8 @@ public class ChatService {
                             .updatedAt(LocalDateTime.now())
                             .build();
                     return singleChatRepository.save(chat);
-                });
+                })
+                .flatMap(chat -> membershipCache.invalidate(chat.getId()).thenReturn(chat));
     }
 
     // Group Chat operations with member/admin validation
@@ -52,7 +65,8 @@ public class ChatService {
                             .updatedAt(LocalDateTime.now())
                             .build();
                     return groupChatRepository.save(chat);
-                });
+                })
+                .flatMap(chat -> membershipCache.invalidate(chat.getId()).thenReturn(chat));
     }
 
     public Mono<GroupChat> addGroupMember(String groupId, String adminId, String newMemberId) {
@@ -61,7 +75,10 @@ public class ChatService {
                 .flatMap(group -> {
                     group.getMembers().add(newMemberId);
                     return groupChatRepository.save(group);
-                });
+                })
+                .flatMap(group -> addConversationParticipant(groupId, newMemberId)
+                        .then(membershipCache.invalidate(groupId))
+                        .thenReturn(group));
     }
 
     public Mono<GroupChat> addGroupAdmin(String groupId, String currentAdminId, String newAdminId) {
@@ -70,19 +87,30 @@ public class ChatService {
                 .flatMap(group -> {
                     group.getAdmins().add(newAdminId);
                     return groupChatRepository.save(group);
-                });
+                })
+                .flatMap(group -> membershipCache.invalidate(groupId).thenReturn(group));
+    }
+
+    // Users that belong in the participant list of the room's conversations
+    public Mono<List<String>> getRoomMembers(String roomId) {
+        return singleChatRepository.findById(roomId)
+                .map(chat -> List.of(chat.getMember1(), chat.getMember2()))
+                .switchIfEmpty(groupChatRepository.findById(roomId).map(GroupChat::getMembers));
+    }
+
+    // Keeps the denormalized participant list of the room's conversations in step with its members
+    private Mono<Void> addConversationParticipant(String roomId, String userId) {
+        return mongoTemplate.updateMulti(
+                        Query.query(Criteria.where("roomId").is(roomId)),
+                        new Update().addToSet("participantIds", userId),
+                        Conversation.class)
+                .then();
     }
 
     // Room access validation methods
     public Mono<Boolean> canAccessRoom(String userId, String roomId) {
-        return Mono.zip(
-                singleChatRepository.findById(roomId).map(chat ->
-                        chat.getMember1().equals(userId) || chat.getMember2().equals(userId)
-                ).defaultIfEmpty(false),
-                groupChatRepository.findById(roomId).map(chat ->
-                        chat.getMembers().contains(userId)
-                ).defaultIfEmpty(false)
-        ).map(tuple -> tuple.getT1() || tuple.getT2());
+        return membershipCache.getMembers(roomId, id -> getRoomMembers(id).map(Set::copyOf))
+                .map(members -> members.contains(userId));
     }
 
     public Mono<Boolean> isGroupAdmin(String userId, String groupId) {
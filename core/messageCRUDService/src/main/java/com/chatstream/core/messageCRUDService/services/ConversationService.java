@@ -1,31 +1,66 @@
 package com.chatstream.core.messageCRUDService.services;
 
 import com.chatstream.core.messageCRUDService.models.Conversation;
+import com.chatstream.core.messageCRUDService.models.Message;
 import com.chatstream.core.messageCRUDService.repository.ConversationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 
 @Service
 public class ConversationService {
+    private static final Logger log = LoggerFactory.getLogger(ConversationService.class);
+
     private final ConversationRepository conversationRepository;
     private final ChatService chatService;
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @Value("${conversation_page_default_size:30}")
+    private int defaultPageSize;
+
+    @Value("${conversation_page_max_size:100}")
+    private int maxPageSize;
 
     public ConversationService(ConversationRepository conversationRepository,
-                               ChatService chatService) {
+                               ChatService chatService,
+                               ReactiveMongoTemplate mongoTemplate) {
         this.conversationRepository = conversationRepository;
         this.chatService = chatService;
+        this.mongoTemplate = mongoTemplate;
     }
 
     public Mono<Conversation> createConversation(String roomId, String type) {
-        Conversation conversation = Conversation.builder()
-                .roomId(roomId)
-                .type(type)
-                .updatedAt(LocalDateTime.now())
-                .build();
-        return conversationRepository.save(conversation);
+        return chatService.getRoomMembers(roomId)
+                .defaultIfEmpty(List.of())
+                .flatMap(members -> {
+                    Conversation conversation = Conversation.builder()
+                            .roomId(roomId)
+                            .type(type)
+                            .participantIds(new ArrayList<>(members))
+                            .updatedAt(LocalDateTime.now())
+                            .build();
+                    return conversationRepository.save(conversation);
+                });
     }
 
     public Mono<Conversation> getConversation(String conversationId, String userId) {
@@ -37,10 +72,106 @@ public class ConversationService {
                 );
     }
 
-    public Flux<Conversation> getUserConversations(String userId) {
-        return conversationRepository.findAll()
-                .filterWhen(conversation ->
-                        chatService.canAccessRoom(userId, conversation.getRoomId())
-                );
+    // Folds a stored message into the conversation's summary and counters with one update
+    public Mono<Void> recordMessage(Message message) {
+        Update update = new Update()
+                .inc("messageCount", 1)
+                .set("lastMessage", message.getContent())
+                .set("lastMessageSenderId", message.getSenderId())
+                .max("updatedAt", message.getTimestamp());
+        if (message.getSenderId() != null && !message.getSenderId().isEmpty()) {
+            update.inc("sentCounts." + Conversation.counterKey(message.getSenderId()), 1);
+        }
+        return mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(message.getConversationId())),
+                        update, Conversation.class)
+                .then();
+    }
+
+    // Everything from others posted so far counts as read by the user
+    public Mono<Void> markRead(String conversationId, String userId) {
+        if (userId == null || userId.isEmpty()) {
+            return Mono.empty();
+        }
+        String key = Conversation.counterKey(userId);
+        AggregationUpdate update = AggregationUpdate.update()
+                .set("readCounts." + key).toValue(ArithmeticOperators.Subtract.valueOf("messageCount")
+                        .subtract(ConditionalOperators.ifNull("sentCounts." + key).then(0)));
+        return mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(conversationId)),
+                        update, Conversation.class)
+                .then();
+    }
+
+    // Conversations created before participantIds existed are missing from every inbox until they have
+    // them. Adds the room's members to each such conversation on startup; $addToSet keeps it idempotent
+    // and merges with members added by addGroupMember in the meantime.
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillParticipants() {
+        mongoTemplate.find(Query.query(Criteria.where("participantIds").exists(false)), Conversation.class)
+                .concatMap(conversation -> chatService.getRoomMembers(conversation.getRoomId())
+                        .filter(members -> !members.isEmpty())
+                        .flatMap(members -> mongoTemplate.updateFirst(
+                                Query.query(Criteria.where("_id").is(conversation.getId())),
+                                new Update().addToSet("participantIds").each(members.toArray()),
+                                Conversation.class)))
+                .count()
+                .subscribe(backfilled -> {
+                    if (backfilled > 0) {
+                        log.info("Backfilled participants of {} conversations", backfilled);
+                    }
+                }, error -> log.warn("Backfilling conversation participants failed", error));
+    }
+
+    // One page of the user's inbox, most recently updated first, read from the participant index.
+    // Pass inboxCursor() of the last conversation of the previous page as before to get the next one. The
+    // cursor carries the position itself rather than the conversation's ID: updatedAt moves with every new
+    // message, so looking the conversation up again would skip or repeat conversations.
+    public Flux<Conversation> getUserConversations(String userId, String before, Integer pageSize) {
+        int limit = pageSize == null || pageSize <= 0 ? defaultPageSize : Math.min(pageSize, maxPageSize);
+
+        Criteria criteria = Criteria.where("participantIds").is(userId);
+        if (before != null) {
+            criteria = criteria.andOperator(olderThan(before));
+        }
+        return mongoTemplate.find(
+                Query.query(criteria)
+                        .with(Sort.by(Sort.Direction.DESC, "updatedAt", "_id"))
+                        .limit(limit),
+                Conversation.class);
+    }
+
+    // Opaque to clients: "<updatedAt>|<id>", Base64url encoded. Conversations without updatedAt sort last.
+    public static String inboxCursor(Conversation conversation) {
+        String updatedAt = conversation.getUpdatedAt() == null ? "" : conversation.getUpdatedAt().toString();
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((updatedAt + "|" + conversation.getId()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Conversations after the cursor in inbox order; the ID settles equal updatedAt values
+    private static Criteria olderThan(String cursor) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid inbox cursor", e);
+        }
+        int separator = decoded.indexOf('|');
+        if (separator < 0 || separator == decoded.length() - 1) {
+            throw new IllegalArgumentException("Invalid inbox cursor");
+        }
+        String id = decoded.substring(separator + 1);
+        if (separator == 0) {
+            return Criteria.where("updatedAt").is(null).and("_id").lt(id);
+        }
+
+        LocalDateTime updatedAt;
+        try {
+            updatedAt = LocalDateTime.parse(decoded.substring(0, separator));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid inbox cursor", e);
+        }
+        return new Criteria().orOperator(
+                Criteria.where("updatedAt").lt(updatedAt),
+                Criteria.where("updatedAt").is(null),
+                new Criteria().andOperator(Criteria.where("updatedAt").is(updatedAt), Criteria.where("_id").lt(id)));
     }
 }
@@ -1,7 +1,13 @@
 package com.chatstream.core.messageCRUDService.services;
 
 import com.chatstream.core.messageCRUDService.models.Message;
+import com.chatstream.core.messageCRUDService.models.MessageView;
 import com.chatstream.core.messageCRUDService.repository.MessageRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -13,13 +19,22 @@ public class MessageService {
     private final MessageRepository messageRepository;
     private final ConversationService conversationService;
     private final ChatService chatService;
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @Value("${message_page_default_size:50}")
+    private int defaultPageSize;
+
+    @Value("${message_page_max_size:100}")
+    private int maxPageSize;
 
     public MessageService(MessageRepository messageRepository,
                           ConversationService conversationService,
-                          ChatService chatService) {
+                          ChatService chatService,
+                          ReactiveMongoTemplate mongoTemplate) {
         this.messageRepository = messageRepository;
         this.conversationService = conversationService;
         this.chatService = chatService;
+        this.mongoTemplate = mongoTemplate;
     }
 
     public Mono<Message> sendMessage(String conversationId, String senderId, String content) {
@@ -29,29 +44,64 @@ public class MessageService {
                             .conversationId(conversationId)
                             .senderId(senderId)
                             .content(content)
+                            .contentType("text")
                             .timestamp(LocalDateTime.now())
-                            .readStatus(false)
                             .build();
                     return messageRepository.save(message);
-                });
+                })
+                .flatMap(message -> conversationService.recordMessage(message).thenReturn(message));
     }
 
-    public Flux<Message> getConversationMessages(String conversationId, String userId) {
+    // One page of history, read as a range on the {conversationId, timestamp, _id} index. Without a
+    // cursor this is the newest page. With beforeId the page holds the messages older than that one,
+    // newest first; with afterId the ones newer than it, oldest first, for catching up.
+    public Flux<MessageView> getConversationMessages(String conversationId, String userId,
+                                                     String beforeId, String afterId, Integer pageSize) {
+        int limit = pageSize == null || pageSize <= 0 ? defaultPageSize : Math.min(pageSize, maxPageSize);
+        boolean newer = afterId != null;
+        String cursorId = newer ? afterId : beforeId;
+
+        Mono<Criteria> range = cursorId == null
+                ? Mono.just(Criteria.where("conversationId").is(conversationId))
+                : messageRepository.findById(cursorId)
+                        .filter(cursor -> conversationId.equals(cursor.getConversationId()))
+                        .map(cursor -> keysetAfter(conversationId, cursor, newer));
+
         return conversationService.getConversation(conversationId, userId)
-                .flatMapMany(conversation ->
-                        messageRepository.findByConversationIdOrderByTimestampDesc(conversationId)
-                );
+                .flatMap(conversation -> range)
+                .flatMapMany(criteria -> {
+                    Sort.Direction direction = newer ? Sort.Direction.ASC : Sort.Direction.DESC;
+                    Query query = Query.query(criteria)
+                            .with(Sort.by(direction, "timestamp", "_id"))
+                            .limit(limit);
+                    query.fields().include("senderId", "content", "contentType", "timestamp");
+                    return mongoTemplate.find(query, MessageView.class, "messages");
+                });
     }
 
+    // Messages strictly past the cursor in the given direction; the ID settles equal timestamps
+    private static Criteria keysetAfter(String conversationId, Message cursor, boolean newer) {
+        Criteria timestampPast = newer
+                ? Criteria.where("timestamp").gt(cursor.getTimestamp())
+                : Criteria.where("timestamp").lt(cursor.getTimestamp());
+        Criteria idPast = newer
+                ? Criteria.where("_id").gt(cursor.getId())
+                : Criteria.where("_id").lt(cursor.getId());
+
+        return Criteria.where("conversationId").is(conversationId)
+                .orOperator(timestampPast,
+                        new Criteria().andOperator(Criteria.where("timestamp").is(cursor.getTimestamp()), idPast));
+    }
+
+    // A single update of the conversation: everything posted so far counts as read by the user
     public Mono<Void> markMessagesAsRead(String conversationId, String userId) {
         return conversationService.getConversation(conversationId, userId)
-                .flatMapMany(conversation ->
-                        messageRepository.findByConversationIdAndReadStatusFalse(conversationId)
-                )
-                .flatMap(message -> {
-                    message.setReadStatus(true);
-                    return messageRepository.save(message);
-                })
-                .then();
+                .flatMap(conversation -> conversationService.markRead(conversationId, userId));
+    }
+
+    // Read from the conversation's counters; no messages are touched
+    public Mono<Long> getUnreadCount(String conversationId, String userId) {
+        return conversationService.getConversation(conversationId, userId)
+                .map(conversation -> conversation.unreadCountFor(userId));
     }
 }
\ No newline at end of file
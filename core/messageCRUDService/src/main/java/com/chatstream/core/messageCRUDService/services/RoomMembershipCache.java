@@ -0,0 +1,84 @@
+package com.chatstream.core.messageCRUDService.services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.function.Function;
+
+// Members of each room, so access checks do not read the chat documents every time. Entries expire after
+// a while as a safety net; membership changes invalidate them straight away on every instance through a
+// Redis channel.
+@Component
+public class RoomMembershipCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RoomMembershipCache.class);
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private AsyncCache<String, Set<String>> cache;
+    private Disposable invalidations;
+
+    @Value("${room_membership_cache_max_size:100000}")
+    private long maxSize;
+
+    @Value("${room_membership_cache_ttl_ms:300000}")
+    private long ttlMs;
+
+    @Value("${room_membership_channel:chatstream:room-members:invalidate}")
+    private String channel;
+
+    public RoomMembershipCache(ReactiveStringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @PostConstruct
+    public void start() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(ttlMs))
+                .buildAsync();
+
+        // Deferred so an unreachable Redis is retried in the background rather than failing startup
+        invalidations = Flux.defer(() -> redisTemplate.listenToChannel(channel))
+                .doOnNext(message -> cache.synchronous().invalidate(message.getMessage()))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30)))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (invalidations != null) {
+            invalidations.dispose();
+        }
+    }
+
+    // Loads the members once for concurrent callers; a room that does not exist is cached as empty
+    public Mono<Set<String>> getMembers(String roomId, Function<String, Mono<Set<String>>> loader) {
+        return Mono.fromFuture(() -> cache.get(roomId, (key, executor) ->
+                loader.apply(key).defaultIfEmpty(Set.of()).toFuture()));
+    }
+
+    // Drops the room here at once and on the other instances once the message arrives
+    public Mono<Void> invalidate(String roomId) {
+        cache.synchronous().invalidate(roomId);
+        return redisTemplate.convertAndSend(channel, roomId)
+                .onErrorResume(error -> {
+                    log.warn("Publishing invalidation of room {} failed: {}", roomId, error.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+}
@@ -0,0 +1,83 @@
+package com.chatstream.core.storageService.service;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Turning a batch of stream entries into the upsert documents MongoMessageService.upsertAll
+// sends, including the mapping Spring Data applies before handing them to the driver
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DocumentMappingBenchmark {
+
+    @Param({"500"})
+    private int batchSize;
+
+    @Param({"256"})
+    private int messageBytes;
+
+    private List<MapRecord<String, String, String>> records;
+    private QueryMapper queryMapper;
+    private UpdateMapper updateMapper;
+    // The messages collection is written without an entity class, as the documents belong to messageCRUDService
+    private final MongoPersistentEntity<?> entity = null;
+
+    @Setup
+    public void setUp() {
+        // Set up like Spring Boot does, so types such as Date are written as values rather than entities
+        MongoCustomConversions conversions = new MongoCustomConversions(List.of());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        queryMapper = new QueryMapper(converter);
+        updateMapper = new UpdateMapper(converter);
+
+        records = new ArrayList<>(batchSize);
+        String message = "x".repeat(messageBytes);
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < batchSize; i++) {
+            records.add(StreamRecords.newRecord()
+                    .in("room-42")
+                    .withId(RecordId.of(timestamp, i))
+                    .ofMap(Map.of("payload", message, "sender", "user-7", "cmid", "client-" + i)));
+        }
+    }
+
+    @Benchmark
+    public void mapBatch(Blackhole blackhole) {
+        for (MapRecord<String, String, String> record : records) {
+            Document query = queryMapper.getMappedObject(
+                    MongoMessageService.idQuery("room-42", record).getQueryObject(), entity);
+            Document update = updateMapper.getMappedObject(
+                    MongoMessageService.toUpdate("room-42", "conversation-42", record).getUpdateObject(), entity);
+            blackhole.consume(query);
+            blackhole.consume(update);
+        }
+    }
+}
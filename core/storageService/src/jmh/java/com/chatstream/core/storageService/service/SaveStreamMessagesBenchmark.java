@@ -0,0 +1,76 @@
+package com.chatstream.core.storageService.service;
+
+import com.chatstream.core.storageService.metrics.StorageMetrics;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// One bulk upsert of a batch of new stream entries against a real MongoDB. Needs a local MongoDB
+// (docker-compose up mongodb); point elsewhere with -Djmh.mongo.uri. Uses its own database, which is
+// dropped afterwards.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SaveStreamMessagesBenchmark {
+
+    private static final String DATABASE = "ChatStreamBenchmark";
+
+    @Param({"100", "500"})
+    private int batchSize;
+
+    @Param({"256"})
+    private int messageBytes;
+
+    private MongoClient mongoClient;
+    private MongoTemplate mongoTemplate;
+    private MongoMessageService mongoMessageService;
+    private String message;
+    private long timestamp;
+
+    @Setup
+    public void setUp() {
+        mongoClient = MongoClients.create(System.getProperty("jmh.mongo.uri", "mongodb://localhost:27017"));
+        mongoTemplate = new MongoTemplate(mongoClient, DATABASE);
+        mongoMessageService = new MongoMessageService(mongoTemplate, new StorageMetrics(new SimpleMeterRegistry()));
+        message = "x".repeat(messageBytes);
+        timestamp = System.currentTimeMillis();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mongoTemplate.getDb().drop();
+        mongoClient.close();
+    }
+
+    // Every invocation writes entries with new IDs, so each upsert inserts a document
+    @Benchmark
+    public void saveBatch() {
+        long batchTimestamp = timestamp++;
+        List<MapRecord<String, String, String>> records = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            records.add(StreamRecords.newRecord()
+                    .in("room-42")
+                    .withId(RecordId.of(batchTimestamp, i))
+                    .ofMap(Map.of("payload", message)));
+        }
+        mongoMessageService.upsertAll(List.of(records));
+    }
+}
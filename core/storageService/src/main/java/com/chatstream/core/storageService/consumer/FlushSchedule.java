@@ -0,0 +1,100 @@
+package com.chatstream.core.storageService.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+// Storage side of the flush schedule the brokers keep: per shard, a sorted set of stream deadlines and
+// a hash of unpersisted entry counts (see PersistSchedule in the broker). Only streams whose deadline
+// has passed are read, so idle streams cost nothing between publishes.
+@Component
+public class FlushSchedule {
+
+    private static final Logger log = LoggerFactory.getLogger(FlushSchedule.class);
+
+    // Subtracts what was persisted and schedules the stream again, or drops it once nothing is left.
+    // ARGV: stream, persisted, now, max delay, more entries may be waiting (1/0), batch size
+    private static final RedisScript<Long> SETTLE_SCRIPT = RedisScript.of("""
+            local remaining = redis.call('HINCRBY', KEYS[2], ARGV[1], -tonumber(ARGV[2]))
+            if ARGV[2] == '0' and remaining > 0 then
+                -- Nothing was read although entries were counted, so the count is off. Start it over and
+                -- look once more later, in case an entry arrived right after the read.
+                redis.call('HSET', KEYS[2], ARGV[1], 0)
+                remaining = 0
+            elseif remaining <= 0 and ARGV[5] == '0' then
+                redis.call('HDEL', KEYS[2], ARGV[1])
+                redis.call('ZREM', KEYS[1], ARGV[1])
+                return 0
+            elseif remaining < 0 then
+                redis.call('HSET', KEYS[2], ARGV[1], 0)
+                remaining = 0
+            end
+            local deadline = tonumber(ARGV[3]) + tonumber(ARGV[4])
+            if ARGV[5] == '1' or remaining >= tonumber(ARGV[6]) then
+                deadline = tonumber(ARGV[3])
+            end
+            redis.call('ZADD', KEYS[1], deadline, ARGV[1])
+            return remaining
+            """, Long.class);
+
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+
+    @Value("${flush_schedule_prefix:chatstream:flush}")
+    private String schedulePrefix;
+
+    @Value("${persist_shard_count:16}")
+    private int shardCount;
+
+    @Value("${persist_batch_size:500}")
+    private int batchSize;
+
+    @Value("${persist_max_delay_ms:5000}")
+    private long maxDelayMs;
+
+    public FlushSchedule(ReactiveRedisTemplate<String, String> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public String shardKey(int shard) {
+        return schedulePrefix + ":{" + shard + "}";
+    }
+
+    public Flux<String> dueStreams(int shard, int limit) {
+        Range<Double> upToNow = Range.of(Range.Bound.unbounded(),
+                Range.Bound.inclusive((double) System.currentTimeMillis()));
+        return redisTemplate.opsForZSet()
+                .rangeByScore(shardKey(shard) + ":due", upToNow, Limit.limit().count(limit));
+    }
+
+    // Called after every read of a due stream, with what was persisted from it (possibly nothing)
+    public Mono<Long> settle(String stream, int persisted, boolean more) {
+        String shard = shardKey(shardOf(stream, shardCount));
+        List<String> args = List.of(stream, String.valueOf(persisted), String.valueOf(System.currentTimeMillis()),
+                String.valueOf(maxDelayMs), more ? "1" : "0", String.valueOf(batchSize));
+
+        return redisTemplate.execute(SETTLE_SCRIPT, List.of(shard + ":due", shard + ":backlog"), args)
+                .next()
+                .onErrorResume(error -> {
+                    log.warn("Rescheduling stream {} failed: {}", stream, error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    // Same mapping the brokers use; String.hashCode() is fixed by the language spec
+    public static int shardOf(String stream, int shardCount) {
+        return Math.floorMod(stream.hashCode(), shardCount);
+    }
+}
@@ -0,0 +1,75 @@
+package com.chatstream.core.storageService.consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Storage side of the recent history lists the brokers keep per room (see RecentHistory in the broker).
+// Publishes add to a room's list as they happen; a flush puts what it persisted into the list when the
+// room has none, e.g. after it expired or Redis lost it, so readers of a room that is being written to
+// are served from memory again without going to MongoDB first.
+@Component
+public class RecentHistory {
+
+    private static final Logger log = LoggerFactory.getLogger(RecentHistory.class);
+
+    // Stream entry field holding the message, as written by the broker's MessageEnvelope
+    private static final String CONTENT_FIELD = "payload";
+
+    // ARGV: ttl, then the entries oldest first, each as "<entry id>:<message>". Left alone when the list
+    // exists, as publishes have put these entries in already.
+    private static final RedisScript<Long> FILL_SCRIPT = RedisScript.of("""
+            if redis.call('EXISTS', KEYS[1]) == 1 then
+                return 0
+            end
+            for i = 2, #ARGV do
+                redis.call('LPUSH', KEYS[1], ARGV[i])
+            end
+            redis.call('PEXPIRE', KEYS[1], ARGV[1])
+            return 1
+            """, Long.class);
+
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+
+    // Must match the brokers' settings
+    @Value("${recent_history_key_prefix:chatstream:recent}")
+    private String keyPrefix;
+
+    @Value("${recent_history_capacity:200}")
+    private int capacity;
+
+    @Value("${recent_history_ttl_ms:3600000}")
+    private long ttlMs;
+
+    public RecentHistory(ReactiveRedisTemplate<String, String> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    // The newest entries of a persisted batch, up to the list's capacity. The messages are stored either
+    // way, so a failure is only logged.
+    public Mono<Void> fill(StreamBatch batch) {
+        List<MapRecord<String, String, String>> records = batch.getRecords();
+        List<String> args = new ArrayList<>(Math.min(records.size(), capacity) + 1);
+        args.add(String.valueOf(ttlMs));
+        List<MapRecord<String, String, String>> newest =
+                records.subList(Math.max(records.size() - capacity, 0), records.size());
+        for (MapRecord<String, String, String> record : newest) {
+            args.add(record.getId().getValue() + ":" + record.getValue().getOrDefault(CONTENT_FIELD, ""));
+        }
+
+        return redisTemplate.execute(FILL_SCRIPT, List.of(keyPrefix + ":" + batch.getStream()), args)
+                .then()
+                .onErrorResume(error -> {
+                    log.debug("Filling the recent history of {} failed: {}", batch.getStream(), error.getMessage());
+                    return Mono.empty();
+                });
+    }
+}
@@ -1,43 +1,322 @@
 package com.chatstream.core.storageService.consumer;
 
+import com.chatstream.core.storageService.metrics.StorageMetrics;
+import com.chatstream.core.storageService.service.MongoMessageService;
+import com.chatstream.core.storageService.service.MongoWriteCoalescer;
+import com.chatstream.core.storageService.service.StreamRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.CommandLineRunner;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
 import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.connection.stream.StreamOffset;
 import org.springframework.data.redis.connection.stream.StreamReadOptions;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveStreamOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Write-behind persister: reads the chat streams that are due according to the flush schedule, in the
+// shards this instance holds, through the shared storage consumer group. Entries are written to MongoDB
+// in batches, then acknowledged and trimmed, and the stream is rescheduled or dropped from the schedule.
 @Component
-public class RedisStreamConsumer implements CommandLineRunner {
+public class RedisStreamConsumer {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisStreamConsumer.class);
+
+    // Acknowledges a persisted batch and trims everything no consumer group needs any more in one round
+    // trip. Besides the storage group, every broker node tails the stream through a group of its own, so
+    // the trim stops at the oldest entry any group still has pending or has not been delivered yet. A
+    // broker that lags or reconnects thus still gets every entry; a group left behind by a node that went
+    // away holds the stream back until the stream_max_length cap of the brokers applies.
+    private static final RedisScript<Long> ACK_AND_TRIM_SCRIPT = RedisScript.of("""
+            for i = 3, #ARGV, 500 do
+                redis.call('XACK', KEYS[1], ARGV[1], unpack(ARGV, i, math.min(i + 499, #ARGV)))
+            end
+            local function parse(id)
+                local ms, seq = string.match(id, '^(%d+)-(%d+)$')
+                return tonumber(ms), tonumber(seq)
+            end
+            local function older(a, b)
+                local ams, aseq = parse(a)
+                local bms, bseq = parse(b)
+                return ams < bms or (ams == bms and aseq < bseq)
+            end
+            local minId = ARGV[2]
+            for _, group in ipairs(redis.call('XINFO', 'GROUPS', KEYS[1])) do
+                local info = {}
+                for i = 1, #group, 2 do
+                    info[group[i]] = group[i + 1]
+                end
+                local floor
+                if info['pending'] > 0 then
+                    floor = redis.call('XPENDING', KEYS[1], info['name'])[2]
+                else
+                    local ms, seq = string.match(info['last-delivered-id'], '^(%d+)-(%d+)$')
+                    floor = ms .. '-' .. (tonumber(seq) + 1)
+                end
+                if older(floor, minId) then
+                    minId = floor
+                end
+            end
+            return redis.call('XTRIM', KEYS[1], 'MINID', minId)
+            """, Long.class);
 
     private final ReactiveRedisTemplate<String, String> reactiveRedisTemplate;
+    private final ReactiveStreamOperations<String, String, String> streamOps;
+    private final StreamRegistry streamRegistry;
+    private final MongoWriteCoalescer writeCoalescer;
+    private final FlushSchedule flushSchedule;
+    private final ShardLeases shardLeases;
+    private final RecentHistory recentHistory;
+    private final StorageMetrics metrics;
+    // Last batch handed on per stream, by the poll loop or reclaimPending(); the next one of the stream
+    // waits for it
+    private final Map<String, Mono<Long>> streamTails = new ConcurrentHashMap<>();
+    private Disposable subscription;
+
+    @Value("${storage_consumer_name:${HOSTNAME:localhost}-${server.port:8083}}")
+    private String consumerName;
+
+    // Max entries read per stream per poll, and so max entries in one bulk write
+    @Value("${persist_batch_size:500}")
+    private int batchSize;
+
+    @Value("${persist_batch_max_bytes:1048576}")
+    private long batchMaxBytes;
+
+    // How long to wait before looking for due streams again when the previous pass found nothing.
+    // Each look is one ZRANGEBYSCORE per held shard, however many streams there are.
+    @Value("${persist_idle_delay_ms:250}")
+    private long idleDelayMs;
+
+    // Streams per XREADGROUP call, and due streams taken from a shard per pass
+    @Value("${persist_streams_per_read:50}")
+    private int streamsPerRead;
+
+    // Lanes streams are spread over, each with one bulk write in flight (see MongoWriteCoalescer)
+    @Value("${persist_max_concurrent_writes:4}")
+    private int maxConcurrentWrites;
+
+    @Value("${persist_pending_min_idle_ms:60000}")
+    private long pendingMinIdleMs;
 
     @Autowired
-    public RedisStreamConsumer(ReactiveRedisTemplate<String, String> reactiveRedisTemplate) {
+    public RedisStreamConsumer(ReactiveRedisTemplate<String, String> reactiveRedisTemplate,
+                               StreamRegistry streamRegistry,
+                               MongoWriteCoalescer writeCoalescer,
+                               FlushSchedule flushSchedule,
+                               ShardLeases shardLeases,
+                               RecentHistory recentHistory,
+                               StorageMetrics metrics) {
         this.reactiveRedisTemplate = reactiveRedisTemplate;
+        this.streamOps = reactiveRedisTemplate.opsForStream();
+        this.streamRegistry = streamRegistry;
+        this.writeCoalescer = writeCoalescer;
+        this.flushSchedule = flushSchedule;
+        this.shardLeases = shardLeases;
+        this.recentHistory = recentHistory;
+        this.metrics = metrics;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        subscription = Mono.defer(this::pollOnce)
+                .flatMap(persisted -> persisted == 0
+                        ? Mono.delay(Duration.ofMillis(idleDelayMs)).thenReturn(persisted)
+                        : Mono.just(persisted))
+                .repeat()
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30)))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+    }
+
+    // One pass over the due streams of the held shards; emits the number of entries persisted
+    private Mono<Long> pollOnce() {
+        return Flux.fromIterable(new ArrayList<>(shardLeases.getOwnedShards()))
+                .concatMap(shard -> flushSchedule.dueStreams(shard, streamsPerRead))
+                .concatMap(stream -> streamRegistry.register(stream).thenReturn(stream))
+                .buffer(streamsPerRead)
+                .concatMap(this::readDueStreams)
+                .transform(this::persistInLanes)
+                .reduce(0L, Long::sum);
     }
 
-    @Override
-    public void run(String... args) throws Exception {
-        String streamKey = "your-stream-key"; // Replace with your actual Redis stream key
+    // Due streams that turn out to have nothing new are settled right away
+    private Flux<StreamBatch> readDueStreams(List<String> streams) {
+        return readNewEntries(streams)
+                .collectList()
+                .flatMapMany(batches -> {
+                    Set<String> empty = new HashSet<>(streams);
+                    batches.forEach(batch -> empty.remove(batch.getStream()));
+                    return Flux.fromIterable(empty)
+                            .concatMap(stream -> flushSchedule.settle(stream, 0, false))
+                            .thenMany(Flux.fromIterable(batches));
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Flux<StreamBatch> readNewEntries(List<String> streams) {
+        StreamOffset<String>[] offsets = streams.stream()
+                .map(stream -> StreamOffset.create(stream, ReadOffset.lastConsumed()))
+                .toArray(StreamOffset[]::new);
+
+        return streamOps.read(consumer(), StreamReadOptions.empty().count(batchSize), offsets)
+                .collectList()
+                .flatMapIterable(records -> toBatches(records, true))
+                .doOnNext(batch -> streamRegistry.touch(batch.getStream()))
+                .onErrorResume(error -> {
+                    // Typically NOGROUP after a stream key was removed; the registry sets the group up again
+                    log.warn("Reading streams failed: {}", error.getMessage());
+                    streamRegistry.forget(streams);
+                    return Flux.empty();
+                });
+    }
 
-        // Continuously read from the Redis stream
-        Flux<MapRecord<String, Object, Object>> streamMessages = reactiveRedisTemplate.opsForStream()
-                .read(StreamReadOptions.empty().count(10), // Optional: Adjust the batch size
-                        StreamOffset.latest(streamKey) // Correct way to specify stream offset
-                );
+    // Entries that another consumer read but never acknowledged (e.g. its instance died) are claimed
+    // by this one and persisted
+    @Scheduled(fixedDelayString = "${persist_reclaim_interval_ms:60000}")
+    public void reclaimPending() {
+        Duration minIdle = Duration.ofMillis(pendingMinIdleMs);
 
-        streamMessages.subscribe(message -> {
-            // Process each message
-            System.out.println("Received message: " + message.getValue());
+        Flux.fromIterable(new ArrayList<>(streamRegistry.getStreams()))
+                .concatMap(stream -> streamOps.pending(stream, streamRegistry.getConsumerGroup(), Range.unbounded(), batchSize)
+                        .flatMapMany(pending -> {
+                            RecordId[] ids = pending.stream()
+                                    .filter(message -> message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0)
+                                    .map(PendingMessage::getId)
+                                    .toArray(RecordId[]::new);
+                            if (ids.length == 0) {
+                                return Flux.empty();
+                            }
+                            return streamOps.claim(stream, streamRegistry.getConsumerGroup(), consumerName, minIdle, ids);
+                        })
+                        .onErrorResume(error -> Flux.empty()))
+                .collectList()
+                .flatMapIterable(records -> toBatches(records, false))
+                .transform(this::persistInLanes)
+                .subscribe();
+    }
+
+    // Groups entries by stream and splits them so no batch exceeds the size or byte limits. For a
+    // fresh read, a stream that returned the full count may have more entries waiting.
+    private List<StreamBatch> toBatches(List<MapRecord<String, String, String>> records, boolean freshRead) {
+        Map<String, List<MapRecord<String, String, String>>> byStream = new LinkedHashMap<>();
+        for (MapRecord<String, String, String> record : records) {
+            byStream.computeIfAbsent(record.getStream(), key -> new ArrayList<>()).add(record);
+        }
 
-            // Here you can add logic to batch insert into MongoDB
-            // For now, we just print the message to the console
+        List<StreamBatch> batches = new ArrayList<>();
+        byStream.forEach((stream, streamRecords) -> {
+            boolean more = freshRead && streamRecords.size() >= batchSize;
+            List<MapRecord<String, String, String>> current = new ArrayList<>();
+            long bytes = 0;
+            for (MapRecord<String, String, String> record : streamRecords) {
+                long recordBytes = MongoMessageService.sizeOf(record);
+                if (!current.isEmpty() && (current.size() >= batchSize || bytes + recordBytes > batchMaxBytes)) {
+                    batches.add(new StreamBatch(stream, current, more));
+                    current = new ArrayList<>();
+                    bytes = 0;
+                }
+                current.add(record);
+                bytes += recordBytes;
+            }
+            if (!current.isEmpty()) {
+                batches.add(new StreamBatch(stream, current, more));
+            }
         });
+        return batches;
+    }
+
+    // Each stream belongs to one lane by the hash of its name. Within a lane the batches of different
+    // streams are handed to the coalescer together, to share its bulk writes, while each stream's batches
+    // go one after another in read order, so its messages (and its conversation's last message) reach
+    // MongoDB in stream order. The poll loop and reclaimPending() both persist through here, and a batch
+    // also waits for the stream's batch the other one is persisting.
+    private Flux<Long> persistInLanes(Flux<StreamBatch> batches) {
+        return batches.groupBy(batch -> MongoWriteCoalescer.laneOf(batch.getStream(), maxConcurrentWrites))
+                .flatMap(lane -> lane.groupBy(StreamBatch::getStream)
+                        .flatMap(stream -> stream.concatMap(this::persistAfterTail), Integer.MAX_VALUE),
+                        maxConcurrentWrites);
+    }
+
+    private Mono<Long> persistAfterTail(StreamBatch batch) {
+        String stream = batch.getStream();
+        Mono<Long> queued = streamTails.compute(stream, (key, tail) ->
+                (tail == null ? Mono.<Void>empty() : tail.then())
+                        .then(Mono.defer(() -> persist(batch)))
+                        .cache());
+        return queued.doFinally(signal -> streamTails.remove(stream, queued));
+    }
+
+    private Mono<Long> persist(StreamBatch batch) {
+        metrics.batchRead(batch.getRecords());
+        return metrics.timeFlush(writeCoalescer.write(batch.getStream(), batch.getRecords())
+                        .flatMap(failed -> {
+                            if (failed.isEmpty()) {
+                                return acknowledgeAndTrim(batch, batch.ids())
+                                        .then(flushSchedule.settle(batch.getStream(), batch.size(), batch.hasMore()))
+                                        .then(recentHistory.fill(batch))
+                                        .thenReturn((long) batch.size());
+                            }
+                            // What was written is acknowledged; the trim stops at the oldest entry a group still needs
+                            String[] written = batch.getRecords().stream()
+                                    .filter(record -> !failed.contains(record.getId()))
+                                    .map(record -> record.getId().getValue())
+                                    .toArray(String[]::new);
+                            Mono<Long> acknowledged = written.length == 0 ? Mono.empty() : acknowledgeAndTrim(batch, written);
+                            return acknowledged.then(Mono.error(new IllegalStateException(
+                                    failed.size() + " of them could not be written")));
+                        }))
+                .onErrorResume(error -> {
+                    // Left pending; reclaimPending() retries the entries once they have been idle long enough
+                    log.warn("Persisting {} messages from stream {} failed: {}",
+                            batch.size(), batch.getStream(), error.getMessage());
+                    metrics.flushFailed();
+                    return Mono.just(0L);
+                });
+    }
+
+    private Mono<Long> acknowledgeAndTrim(StreamBatch batch, String[] ids) {
+        List<String> args = new ArrayList<>(ids.length + 2);
+        args.add(streamRegistry.getConsumerGroup());
+        args.add(batch.nextId());
+        args.addAll(Arrays.asList(ids));
+
+        return reactiveRedisTemplate.execute(ACK_AND_TRIM_SCRIPT, List.of(batch.getStream()), args).next();
+    }
 
-        // Keep the application running to continue consuming messages
-        Thread.currentThread().join();
+    private Consumer consumer() {
+        return Consumer.from(streamRegistry.getConsumerGroup(), consumerName);
     }
-}
\ No newline at end of file
+}
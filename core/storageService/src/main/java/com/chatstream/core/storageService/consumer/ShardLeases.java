@@ -0,0 +1,147 @@
+package com.chatstream.core.storageService.consumer;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Splits the flush shards between storage instances so each due stream is read by one of them. An
+// instance holds a Redis lease per shard and keeps renewing it; instances also announce themselves in a
+// sorted set, so each aims for an even share and gives shards up when others join. Leases of an instance
+// that died expire and are taken over; entries it had read but not persisted are reclaimed as usual.
+@Component
+public class ShardLeases {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardLeases.class);
+
+    private static final RedisScript<Long> RENEW_SCRIPT = RedisScript.of("""
+            if redis.call('GET', KEYS[1]) == ARGV[1] then
+                return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+            end
+            return 0
+            """, Long.class);
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = RedisScript.of("""
+            if redis.call('GET', KEYS[1]) == ARGV[1] then
+                return redis.call('DEL', KEYS[1])
+            end
+            return 0
+            """, Long.class);
+
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final FlushSchedule flushSchedule;
+    private final Set<Integer> ownedShards = ConcurrentHashMap.newKeySet();
+
+    @Value("${storage_consumer_name:${HOSTNAME:localhost}-${server.port:8083}}")
+    private String consumerName;
+
+    @Value("${flush_schedule_prefix:chatstream:flush}")
+    private String schedulePrefix;
+
+    @Value("${persist_lease_ms:15000}")
+    private long leaseMs;
+
+    public ShardLeases(ReactiveRedisTemplate<String, String> redisTemplate, FlushSchedule flushSchedule) {
+        this.redisTemplate = redisTemplate;
+        this.flushSchedule = flushSchedule;
+    }
+
+    public Set<Integer> getOwnedShards() {
+        return ownedShards;
+    }
+
+    // Must run well within persist_lease_ms so leases never lapse while their holder is alive
+    @Scheduled(fixedDelayString = "${persist_lease_renew_ms:5000}")
+    public void rebalance() {
+        long now = System.currentTimeMillis();
+        String nodesKey = schedulePrefix + ":nodes";
+
+        redisTemplate.opsForZSet().add(nodesKey, consumerName, now)
+                .then(redisTemplate.opsForZSet().removeRangeByScore(nodesKey,
+                        Range.of(Range.Bound.unbounded(), Range.Bound.inclusive((double) (now - leaseMs)))))
+                .then(redisTemplate.opsForZSet().size(nodesKey))
+                .flatMap(liveNodes -> renewOwned().then(Mono.defer(() -> adjust(fairShare(liveNodes)))))
+                .doOnError(error -> log.warn("Rebalancing flush shards failed: {}", error.getMessage()))
+                .onErrorResume(error -> Mono.empty())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void releaseAll() {
+        Flux.fromIterable(new ArrayList<>(ownedShards))
+                .concatMap(this::release)
+                .then(redisTemplate.opsForZSet().remove(schedulePrefix + ":nodes", consumerName))
+                .timeout(Duration.ofSeconds(2))
+                .onErrorResume(error -> Mono.empty())
+                .block();
+    }
+
+    private int fairShare(long liveNodes) {
+        int shardCount = flushSchedule.getShardCount();
+        return (int) ((shardCount + Math.max(liveNodes, 1) - 1) / Math.max(liveNodes, 1));
+    }
+
+    private Mono<Void> renewOwned() {
+        return Flux.fromIterable(new ArrayList<>(ownedShards))
+                .concatMap(shard -> redisTemplate.execute(RENEW_SCRIPT, List.of(leaseKey(shard)),
+                                List.of(consumerName, String.valueOf(leaseMs)))
+                        .next()
+                        .filter(renewed -> renewed == 0)
+                        .doOnNext(lost -> ownedShards.remove(shard)))
+                .then();
+    }
+
+    private Mono<Void> adjust(int target) {
+        if (ownedShards.size() > target) {
+            return Flux.fromIterable(new ArrayList<>(ownedShards))
+                    .take(ownedShards.size() - target)
+                    .concatMap(this::release)
+                    .then();
+        }
+
+        // Each instance starts looking at a different shard so they do not all contend for the same ones
+        int shardCount = flushSchedule.getShardCount();
+        int start = Math.floorMod(consumerName.hashCode(), shardCount);
+        List<Integer> candidates = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            candidates.add((start + i) % shardCount);
+        }
+
+        return Flux.fromIterable(candidates)
+                .filter(shard -> !ownedShards.contains(shard))
+                .concatMap(shard -> Mono.defer(() -> ownedShards.size() >= target ? Mono.empty() : acquire(shard)))
+                .then();
+    }
+
+    private Mono<Boolean> acquire(int shard) {
+        return redisTemplate.opsForValue()
+                .setIfAbsent(leaseKey(shard), consumerName, Duration.ofMillis(leaseMs))
+                .doOnNext(acquired -> {
+                    if (acquired) {
+                        ownedShards.add(shard);
+                    }
+                });
+    }
+
+    private Mono<Long> release(int shard) {
+        ownedShards.remove(shard);
+        return redisTemplate.execute(RELEASE_SCRIPT, List.of(leaseKey(shard)), List.of(consumerName)).next();
+    }
+
+    private String leaseKey(int shard) {
+        return flushSchedule.shardKey(shard) + ":lease";
+    }
+}
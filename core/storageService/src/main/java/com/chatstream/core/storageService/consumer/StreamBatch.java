@@ -0,0 +1,48 @@
+package com.chatstream.core.storageService.consumer;
+
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+
+import java.util.List;
+
+// Entries of a single stream that are written to MongoDB and acknowledged together
+public class StreamBatch {
+    private final String stream;
+    private final List<MapRecord<String, String, String>> records;
+    // Set when the read filled its count, so the stream may hold more entries than were read
+    private final boolean more;
+
+    public StreamBatch(String stream, List<MapRecord<String, String, String>> records, boolean more) {
+        this.stream = stream;
+        this.records = records;
+        this.more = more;
+    }
+
+    public String getStream() {
+        return stream;
+    }
+
+    public List<MapRecord<String, String, String>> getRecords() {
+        return records;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public String[] ids() {
+        return records.stream()
+                .map(record -> record.getId().getValue())
+                .toArray(String[]::new);
+    }
+
+    // Smallest possible entry ID after the last entry of the batch
+    public String nextId() {
+        RecordId last = records.get(records.size() - 1).getId();
+        return RecordId.of(last.getTimestamp(), last.getSequence() + 1).getValue();
+    }
+}
@@ -0,0 +1,80 @@
+package com.chatstream.core.storageService.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.List;
+
+// Meters of the persister, exported through the Prometheus actuator endpoint. As streams are rooms, none
+// is tagged with the stream name.
+@Component
+public class StorageMetrics {
+
+    private final MeterRegistry registry;
+    private final DistributionSummary batchSize;
+    private final Timer flushLag;
+    private final Timer bulkWrite;
+    private final DistributionSummary bulkBatches;
+    private final Counter inserted;
+    private final Counter flushFailures;
+
+    public StorageMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.batchSize = DistributionSummary.builder("chatstream.flush.batch.size")
+                .description("Entries per stream batch read for persisting")
+                .register(registry);
+        this.flushLag = Timer.builder("chatstream.flush.lag")
+                .description("Age of the oldest entry of a batch when it is read for persisting")
+                .register(registry);
+        this.bulkWrite = Timer.builder("chatstream.mongo.bulk.write")
+                .description("One MongoDB bulk upsert, covering the coalesced batches of one or more streams")
+                .register(registry);
+        this.bulkBatches = DistributionSummary.builder("chatstream.mongo.bulk.batches")
+                .description("Stream batches combined into one MongoDB bulk write")
+                .register(registry);
+        this.inserted = Counter.builder("chatstream.mongo.inserted")
+                .description("Entries newly inserted into MongoDB; re-flushed entries are not counted")
+                .register(registry);
+        this.flushFailures = Counter.builder("chatstream.flush.failures")
+                .description("Stream batches left pending because persisting them failed")
+                .register(registry);
+    }
+
+    // Entry IDs start with the millisecond Redis added the entry at
+    public void batchRead(List<MapRecord<String, String, String>> records) {
+        batchSize.record(records.size());
+        long oldest = records.get(0).getId().getTimestamp();
+        flushLag.record(Duration.ofMillis(Math.max(System.currentTimeMillis() - oldest, 0)));
+    }
+
+    public void bulkWritten(long nanos, int insertedEntries) {
+        bulkWrite.record(Duration.ofNanos(nanos));
+        inserted.increment(insertedEntries);
+    }
+
+    public void bulkCoalesced(int batches) {
+        bulkBatches.record(batches);
+    }
+
+    public void flushFailed() {
+        flushFailures.increment();
+    }
+
+    // Whole flush of one stream batch: waiting for and sharing a coalesced bulk write, acknowledge and
+    // trim, reschedule
+    public <T> Mono<T> timeFlush(Mono<T> flush) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return flush.doFinally(signal -> sample.stop(Timer.builder("chatstream.flush.duration")
+                    .tag("outcome", signal == SignalType.ON_ERROR ? "error" : "success")
+                    .register(registry)));
+        });
+    }
+}
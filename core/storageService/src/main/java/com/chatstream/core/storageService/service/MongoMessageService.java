@@ -0,0 +1,281 @@
+package com.chatstream.core.storageService.service;
+
+import com.chatstream.core.storageService.metrics.StorageMetrics;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Service
+public class MongoMessageService {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoMessageService.class);
+
+    // Owned by messageCRUDService. Stream entries become documents of its messages collection; on the
+    // conversations only the summary fields are written from here.
+    private static final String MESSAGES = "messages";
+    private static final String CONVERSATIONS = "conversations";
+
+    // Stream entry fields, as written by the broker's MessageEnvelope
+    private static final String CONTENT_FIELD = "payload";
+    private static final String SENDER_FIELD = "sender";
+    private static final String CLIENT_MESSAGE_ID_FIELD = "cmid";
+    private static final String CONTENT_TYPE_FIELD = "type";
+    private static final String DEFAULT_CONTENT_TYPE = "text";
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final StorageMetrics metrics;
+    // Created on the first write rather than at startup, so the service starts while MongoDB is unreachable
+    private volatile boolean indexesEnsured;
+
+    public MongoMessageService(MongoTemplate mongoTemplate, StorageMetrics metrics) {
+        this.mongoTemplate = mongoTemplate;
+        this.metrics = metrics;
+    }
+
+    // Writes batches of any number of streams in one unordered bulk upsert and returns, per batch, the
+    // IDs of the entries that could not be written; all others are in MongoDB. Upserts are keyed by the
+    // sender's client message ID where there is one, otherwise by stream + entry ID, so re-flushing the
+    // same entries or a client retrying a message does not create a duplicate. Blocking; callers run it
+    // on the MongoWriteExecutor.
+    public List<Set<RecordId>> upsertAll(List<List<MapRecord<String, String, String>>> batches) {
+        ensureIndexes();
+        Set<String> streams = new HashSet<>();
+        batches.forEach(batch -> batch.forEach(record -> streams.add(record.getStream())));
+        Map<String, String> conversations = conversationsOf(streams);
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MESSAGES);
+        List<MapRecord<String, String, String>> written = new ArrayList<>();
+        for (List<MapRecord<String, String, String>> batch : batches) {
+            for (MapRecord<String, String, String> record : batch) {
+                String conversationId = conversations.get(record.getStream());
+                bulkOps.upsert(idQuery(record.getStream(), record),
+                        toUpdate(record.getStream(), conversationId, record));
+                written.add(record);
+            }
+        }
+
+        long start = System.nanoTime();
+        BulkWriteResult result;
+        Set<Integer> failedIndexes = new HashSet<>();
+        try {
+            result = bulkOps.execute();
+        } catch (BulkOperationException e) {
+            // Without write errors (e.g. a write concern error) nothing is known to be written
+            if (e.getErrors().isEmpty()) {
+                throw e;
+            }
+            result = e.getResult();
+            for (BulkWriteError error : e.getErrors()) {
+                // A concurrent upsert of the same retried message won the unique index; the message is stored
+                if (error.getCode() != DUPLICATE_KEY) {
+                    failedIndexes.add(error.getIndex());
+                }
+            }
+        }
+        metrics.bulkWritten(System.nanoTime() - start, result.getUpserts().size());
+        log.debug("Saved {} of {} messages from {} streams to MongoDB",
+                result.getUpserts().size(), written.size(), streams.size());
+
+        updateConversationSummaries(conversations, written, result.getUpserts());
+
+        List<Set<RecordId>> failed = new ArrayList<>(batches.size());
+        int index = 0;
+        for (List<MapRecord<String, String, String>> batch : batches) {
+            Set<RecordId> batchFailed = new HashSet<>();
+            for (MapRecord<String, String, String> record : batch) {
+                if (failedIndexes.contains(index++)) {
+                    batchFailed.add(record.getId());
+                }
+            }
+            failed.add(batchFailed);
+        }
+        return failed;
+    }
+
+    // Streams are named after the room they carry; messages of a room without a conversation are kept
+    // without one. A room with several conversations uses its oldest.
+    private Map<String, String> conversationsOf(Set<String> streamNames) {
+        Query query = Query.query(Criteria.where("roomId").in(streamNames))
+                .with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.fields().include("_id", "roomId");
+
+        Map<String, String> conversations = new HashMap<>();
+        for (Document conversation : mongoTemplate.find(query, Document.class, CONVERSATIONS)) {
+            conversations.putIfAbsent(conversation.getString("roomId"), conversation.get("_id").toString());
+        }
+        return conversations;
+    }
+
+    // One update per conversation for the bulk: its counters and last message, the same fields
+    // messageCRUDService keeps when it stores a message itself. Only newly inserted entries count, so
+    // persisting a batch again after a crash does not count it twice. The messages are stored either way,
+    // so a failure here is only logged.
+    private void updateConversationSummaries(Map<String, String> conversations,
+                                             List<MapRecord<String, String, String>> written,
+                                             List<BulkWriteUpsert> inserted) {
+        Map<String, List<MapRecord<String, String, String>>> insertedByConversation = new LinkedHashMap<>();
+        inserted.stream()
+                .map(BulkWriteUpsert::getIndex)
+                .sorted()
+                .map(written::get)
+                .forEach(record -> {
+                    String conversationId = conversations.get(record.getStream());
+                    if (conversationId != null) {
+                        insertedByConversation.computeIfAbsent(conversationId, key -> new ArrayList<>()).add(record);
+                    }
+                });
+        if (insertedByConversation.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CONVERSATIONS);
+        insertedByConversation.forEach((conversationId, records) -> bulkOps.updateOne(
+                Query.query(Criteria.where("_id").is(conversationId)), summaryUpdate(records)));
+        try {
+            bulkOps.execute();
+        } catch (RuntimeException e) {
+            log.warn("Updating {} conversation summaries failed: {}", insertedByConversation.size(), e.getMessage());
+        }
+    }
+
+    private static Update summaryUpdate(List<MapRecord<String, String, String>> insertedInOrder) {
+        Map<String, Long> sentCounts = new HashMap<>();
+        for (MapRecord<String, String, String> record : insertedInOrder) {
+            String senderId = record.getValue().get(SENDER_FIELD);
+            if (senderId != null && !senderId.isEmpty()) {
+                sentCounts.merge(counterKey(senderId), 1L, Long::sum);
+            }
+        }
+
+        MapRecord<String, String, String> last = insertedInOrder.get(insertedInOrder.size() - 1);
+        Update update = new Update()
+                .inc("messageCount", insertedInOrder.size())
+                .set("lastMessage", last.getValue().get(CONTENT_FIELD))
+                .set("lastMessageSenderId", last.getValue().get(SENDER_FIELD))
+                .max("updatedAt", timestampOf(last));
+        sentCounts.forEach((key, count) -> update.inc("sentCounts." + key, count));
+        return update;
+    }
+
+    // Sender IDs become part of a field path, so '.', '$', '%' and NUL are percent-escaped. Must match
+    // Conversation.counterKey in the message CRUD service, which reads and writes the same counters.
+    static String counterKey(String senderId) {
+        StringBuilder key = new StringBuilder(senderId.length());
+        for (int i = 0; i < senderId.length(); i++) {
+            char c = senderId.charAt(i);
+            if (c == '%' || c == '.' || c == '$' || c == '\0') {
+                key.append('%').append(String.format("%02X", (int) c));
+            } else {
+                key.append(c);
+            }
+        }
+        return key.toString();
+    }
+
+    private void ensureIndexes() {
+        if (indexesEnsured) {
+            return;
+        }
+        IndexOperations indexOps = mongoTemplate.indexOps(MESSAGES);
+        // Brokers replay persisted entries of a stream in entry ID order: by timestamp, then sequence
+        indexOps.ensureIndex(new Index()
+                .on("streamName", Sort.Direction.ASC)
+                .on("timestamp", Sort.Direction.ASC)
+                .on("entrySequence", Sort.Direction.ASC));
+        // Lets concurrent upserts of a retried message settle on one document
+        indexOps.ensureIndex(new Index()
+                .on("streamName", Sort.Direction.ASC)
+                .on("senderId", Sort.Direction.ASC)
+                .on("clientMessageId", Sort.Direction.ASC)
+                .unique()
+                .partial(PartialIndexFilter.of(Criteria.where("clientMessageId").exists(true)
+                        .and("senderId").exists(true))));
+        indexesEnsured = true;
+    }
+
+    // A retried message is found by its sender's client message ID within the stream. Without a sender the
+    // client message ID is not known to be unique, so the entry is stored under its own ID like any other.
+    static Query idQuery(String streamName, MapRecord<String, String, String> record) {
+        if (!isDeduplicated(record)) {
+            return Query.query(Criteria.where("_id").is(documentId(streamName, record)));
+        }
+        return Query.query(Criteria.where("streamName").is(streamName)
+                .and("senderId").is(record.getValue().get(SENDER_FIELD))
+                .and("clientMessageId").is(record.getValue().get(CLIENT_MESSAGE_ID_FIELD)));
+    }
+
+    private static boolean isDeduplicated(MapRecord<String, String, String> record) {
+        return record.getValue().get(CLIENT_MESSAGE_ID_FIELD) != null && record.getValue().get(SENDER_FIELD) != null;
+    }
+
+    // A messages document as messageCRUDService reads it, plus the stream position for replays. The
+    // timestamp is when Redis accepted the entry, taken from its ID.
+    static Update toUpdate(String streamName, String conversationId, MapRecord<String, String, String> record) {
+        Map<String, String> fields = record.getValue();
+        Update update = new Update()
+                .setOnInsert("content", fields.get(CONTENT_FIELD))
+                .setOnInsert("contentType", fields.getOrDefault(CONTENT_TYPE_FIELD, DEFAULT_CONTENT_TYPE))
+                .setOnInsert("timestamp", timestampOf(record))
+                .setOnInsert("streamName", streamName)
+                .setOnInsert("entrySequence", record.getId().getSequence());
+        // Left out rather than stored as null, which the unique index would count as a value
+        if (fields.containsKey(SENDER_FIELD)) {
+            update.setOnInsert("senderId", fields.get(SENDER_FIELD));
+        }
+        if (conversationId != null) {
+            update.setOnInsert("conversationId", conversationId);
+        }
+        if (fields.containsKey(CLIENT_MESSAGE_ID_FIELD)) {
+            update.setOnInsert("clientMessageId", fields.get(CLIENT_MESSAGE_ID_FIELD));
+        }
+        if (isDeduplicated(record)) {
+            update.setOnInsert("_id", documentId(streamName, record));
+        }
+        return update;
+    }
+
+    private static Date timestampOf(MapRecord<String, String, String> record) {
+        return new Date(record.getId().getTimestamp());
+    }
+
+    // Approximate size of an entry, for batch and bulk byte limits
+    public static long sizeOf(MapRecord<String, String, String> record) {
+        long bytes = 0;
+        for (Map.Entry<String, String> field : record.getValue().entrySet()) {
+            bytes += field.getKey().length() + field.getValue().length();
+        }
+        return bytes;
+    }
+
+    // Entry IDs are only unique within a stream
+    public static String documentId(String streamName, MapRecord<String, String, String> record) {
+        return streamName + ":" + record.getId().getValue();
+    }
+}
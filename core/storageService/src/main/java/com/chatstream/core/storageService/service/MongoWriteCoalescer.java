@@ -0,0 +1,171 @@
+package com.chatstream.core.storageService.service;
+
+import com.chatstream.core.storageService.metrics.StorageMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+// Combines the batches of many streams into one MongoDB bulk write, so a flush of many small rooms costs
+// a few round trips instead of one per room. Streams are hashed onto lanes, the same ones the persister
+// orders its batches by, and each lane has one bulk write in flight. Batches arriving meanwhile wait for
+// it and go out together in the next one; a batch arriving at an idle lane waits up to the linger time
+// for others. A bulk is closed once it reaches the document or byte cap; batches are never split.
+//
+// Each batch is answered with its own result, the entries that failed, so every stream acknowledges and
+// trims exactly what was written.
+@Component
+public class MongoWriteCoalescer {
+
+    private final MongoMessageService mongoMessageService;
+    private final MongoWriteExecutor writeExecutor;
+    private final StorageMetrics metrics;
+    private final Lane[] lanes;
+
+    @Value("${persist_coalesce_max_documents:2000}")
+    private int maxDocuments;
+
+    @Value("${persist_coalesce_max_bytes:4194304}")
+    private long maxBytes;
+
+    @Value("${persist_coalesce_linger_ms:5}")
+    private long lingerMs;
+
+    public MongoWriteCoalescer(MongoMessageService mongoMessageService, MongoWriteExecutor writeExecutor,
+                               StorageMetrics metrics,
+                               @Value("${persist_max_concurrent_writes:4}") int laneCount) {
+        this.mongoMessageService = mongoMessageService;
+        this.writeExecutor = writeExecutor;
+        this.metrics = metrics;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    // Lane of a stream; the persister uses the same mapping to keep a stream's batches in order
+    public static int laneOf(String stream, int laneCount) {
+        return Math.floorMod(stream.hashCode(), laneCount);
+    }
+
+    // Emits the IDs of the entries that were not written; empty when the whole batch is in MongoDB
+    public Mono<Set<RecordId>> write(String stream, List<MapRecord<String, String, String>> records) {
+        if (records.isEmpty()) {
+            return Mono.just(Set.of());
+        }
+        return Mono.create(sink -> lanes[laneOf(stream, lanes.length)].add(new PendingWrite(records, sink)));
+    }
+
+    private static final class PendingWrite {
+        private final List<MapRecord<String, String, String>> records;
+        private final MonoSink<Set<RecordId>> sink;
+        private final long bytes;
+
+        private PendingWrite(List<MapRecord<String, String, String>> records, MonoSink<Set<RecordId>> sink) {
+            this.records = records;
+            this.sink = sink;
+            long total = 0;
+            for (MapRecord<String, String, String> record : records) {
+                total += MongoMessageService.sizeOf(record);
+            }
+            this.bytes = total;
+        }
+    }
+
+    private final class Lane {
+        private final List<PendingWrite> waiting = new ArrayList<>();
+        private boolean writing;
+        private Disposable linger;
+
+        private void add(PendingWrite write) {
+            synchronized (this) {
+                waiting.add(write);
+                if (writing) {
+                    return;
+                }
+                if (!isFull()) {
+                    if (linger == null) {
+                        linger = Mono.delay(Duration.ofMillis(lingerMs)).subscribe(tick -> lingerElapsed());
+                    }
+                    return;
+                }
+            }
+            writeNext();
+        }
+
+        private void lingerElapsed() {
+            synchronized (this) {
+                linger = null;
+                if (writing || waiting.isEmpty()) {
+                    return;
+                }
+            }
+            writeNext();
+        }
+
+        // After a bulk, whatever queued up during it has waited long enough and goes out straight away
+        private void written() {
+            synchronized (this) {
+                writing = false;
+                if (waiting.isEmpty()) {
+                    return;
+                }
+            }
+            writeNext();
+        }
+
+        private void writeNext() {
+            List<PendingWrite> bulk = new ArrayList<>();
+            synchronized (this) {
+                if (writing || waiting.isEmpty()) {
+                    return;
+                }
+                writing = true;
+                if (linger != null) {
+                    linger.dispose();
+                    linger = null;
+                }
+                int documents = 0;
+                long bytes = 0;
+                while (!waiting.isEmpty()) {
+                    PendingWrite next = waiting.get(0);
+                    if (!bulk.isEmpty() && (documents + next.records.size() > maxDocuments
+                            || bytes + next.bytes > maxBytes)) {
+                        break;
+                    }
+                    bulk.add(waiting.remove(0));
+                    documents += next.records.size();
+                    bytes += next.bytes;
+                }
+            }
+
+            metrics.bulkCoalesced(bulk.size());
+            List<List<MapRecord<String, String, String>>> batches = bulk.stream().map(write -> write.records).toList();
+            writeExecutor.submit(() -> mongoMessageService.upsertAll(batches))
+                    .doFinally(signal -> written())
+                    .subscribe(failed -> {
+                        for (int i = 0; i < bulk.size(); i++) {
+                            bulk.get(i).sink.success(failed.get(i));
+                        }
+                    }, error -> bulk.forEach(write -> write.sink.error(error)));
+        }
+
+        private boolean isFull() {
+            int documents = 0;
+            long bytes = 0;
+            for (PendingWrite write : waiting) {
+                documents += write.records.size();
+                bytes += write.bytes;
+            }
+            return documents >= maxDocuments || bytes >= maxBytes;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.chatstream.core.storageService.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.Callable;
+
+// Runs the blocking MongoDB writes on threads of their own, so they never hold up the Redis event loop
+// or other blocking work on the shared bounded-elastic pool. The pool is sized to the writes the
+// persister keeps in flight, so raising persist_max_concurrent_writes scales the writers with it.
+//
+// How many writes are in flight is up to the caller: MongoWriteCoalescer has at most one per lane, so a
+// busy lane cannot take every writer.
+@Component
+public class MongoWriteExecutor {
+
+    private final Scheduler scheduler;
+
+    public MongoWriteExecutor(@Value("${persist_write_threads:${persist_max_concurrent_writes:4}}") int threads) {
+        this.scheduler = Schedulers.newBoundedElastic(threads, Integer.MAX_VALUE, "mongo-write");
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.dispose();
+    }
+
+    // Cancelling once the write has started does not interrupt it
+    public <T> Mono<T> submit(Callable<T> write) {
+        return Mono.fromCallable(write).subscribeOn(scheduler);
+    }
+}
@@ -0,0 +1,122 @@
+package com.chatstream.core.storageService.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps track of the chat streams that need persisting. Brokers add every stream they publish to
+// into a Redis set; each stream found there gets the storage consumer group before it is read.
+@Service
+public class StreamRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamRegistry.class);
+
+    // Removes an idle stream from the registry only if nothing is left to persist in it. Checked and
+    // removed in one script so an entry published in between cannot be missed.
+    private static final RedisScript<Long> REMOVE_IF_EMPTY_SCRIPT = RedisScript.of("""
+            if redis.call('XLEN', KEYS[2]) == 0 then
+                return redis.call('SREM', KEYS[1], KEYS[2])
+            end
+            return 0
+            """, Long.class);
+
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+    // Known streams, with the time entries were last read from them
+    private final Map<String, Long> streams = new ConcurrentHashMap<>();
+
+    @Value("${stream_registry_key:chatstream:streams}")
+    private String registryKey;
+
+    @Value("${storage_consumer_group:storage}")
+    private String consumerGroup;
+
+    // Any value is safe: every publish adds its stream to the registry in the same script as the XADD, and
+    // an idle stream is removed only while it is empty, so the next publish is discovered again
+    @Value("${stream_idle_evict_ms:900000}")
+    private long idleEvictMs;
+
+    public StreamRegistry(ReactiveRedisTemplate<String, String> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    public Set<String> getStreams() {
+        return streams.keySet();
+    }
+
+    public String getConsumerGroup() {
+        return consumerGroup;
+    }
+
+    // Drops streams whose group has to be set up again (e.g. the stream key was deleted)
+    public void forget(Collection<String> staleStreams) {
+        streams.keySet().removeAll(staleStreams);
+    }
+
+    public void touch(String stream) {
+        streams.replace(stream, System.currentTimeMillis());
+    }
+
+    @Scheduled(fixedDelayString = "${stream_discovery_interval_ms:5000}")
+    public void discoverStreams() {
+        redisTemplate.opsForSet().scan(registryKey)
+                .flatMap(this::register)
+                .doOnError(error -> log.warn("Stream discovery failed: {}", error.getMessage()))
+                .onErrorResume(error -> Mono.empty())
+                .subscribe();
+    }
+
+    // Sets up the consumer group of a stream seen for the first time
+    public Mono<Void> register(String stream) {
+        if (streams.containsKey(stream)) {
+            return Mono.empty();
+        }
+        return ensureConsumerGroup(stream)
+                .doOnSuccess(ok -> streams.put(stream, System.currentTimeMillis()))
+                .then();
+    }
+
+    // Streams nobody has written to for a while stop being polled. The consumer group stays on the
+    // stream, so persisting resumes where it left off once a broker registers the stream again.
+    @Scheduled(fixedDelayString = "${stream_idle_evict_interval_ms:60000}")
+    public void evictIdleStreams() {
+        long cutoff = System.currentTimeMillis() - idleEvictMs;
+        Flux.fromIterable(streams.entrySet())
+                .filter(entry -> entry.getValue() < cutoff)
+                .map(Map.Entry::getKey)
+                .concatMap(stream -> redisTemplate.execute(REMOVE_IF_EMPTY_SCRIPT, List.of(registryKey, stream))
+                        .next()
+                        .filter(removed -> removed > 0)
+                        .doOnNext(removed -> streams.remove(stream)))
+                .doOnError(error -> log.warn("Stream eviction failed: {}", error.getMessage()))
+                .onErrorResume(error -> Mono.empty())
+                .subscribe();
+    }
+
+    // Starts at the beginning so entries published before the group existed are persisted as well
+    private Mono<String> ensureConsumerGroup(String stream) {
+        return redisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"), consumerGroup)
+                .onErrorResume(StreamRegistry::isBusyGroup, error -> Mono.just("OK"));
+    }
+
+    private static boolean isBusyGroup(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("BUSYGROUP")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
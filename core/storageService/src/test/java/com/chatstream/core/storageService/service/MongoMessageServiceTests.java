@@ -0,0 +1,95 @@
+package com.chatstream.core.storageService.service;
+
+import com.chatstream.core.storageService.metrics.StorageMetrics;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+
+import java.util.List;
+import java.util.Set;
+
+import static com.chatstream.core.storageService.service.MongoWriteCoalescerTests.records;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MongoMessageServiceTests {
+
+	private static final int DUPLICATE_KEY = 11000;
+
+	private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+	private final BulkOperations bulkOps = mock(BulkOperations.class);
+	private final MongoMessageService service = new MongoMessageService(mongoTemplate,
+			new StorageMetrics(new SimpleMeterRegistry()));
+
+	MongoMessageServiceTests() {
+		when(mongoTemplate.indexOps(anyString())).thenReturn(mock(IndexOperations.class));
+		when(mongoTemplate.find(any(Query.class), eq(Document.class), anyString())).thenReturn(List.of());
+		when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), anyString())).thenReturn(bulkOps);
+	}
+
+	@Test
+	void reportsNothingFailedForACleanBulk() {
+		when(bulkOps.execute()).thenReturn(BulkWriteResult.acknowledged(0, 0, 0, 0, List.of(), List.of()));
+
+		List<Set<RecordId>> failed = service.upsertAll(List.of(records("room-1", 2), records("room-2", 1)));
+
+		assertThat(failed).containsExactly(Set.of(), Set.of());
+	}
+
+	@Test
+	void mapsFailedBulkIndexesBackToTheirBatches() {
+		List<MapRecord<String, String, String>> first = records("room-1", 2);
+		List<MapRecord<String, String, String>> second = records("room-2", 3);
+		// Bulk indexes: 0-1 are the first batch, 2-4 the second
+		when(bulkOps.execute()).thenThrow(bulkFailure(error(1, 121), error(4, 121)));
+
+		List<Set<RecordId>> failed = service.upsertAll(List.of(first, second));
+
+		assertThat(failed).containsExactly(Set.of(first.get(1).getId()), Set.of(second.get(2).getId()));
+	}
+
+	@Test
+	void countsADuplicateKeyAsWritten() {
+		List<MapRecord<String, String, String>> batch = records("room-1", 2);
+		when(bulkOps.execute()).thenThrow(bulkFailure(error(0, DUPLICATE_KEY)));
+
+		assertThat(service.upsertAll(List.of(batch))).containsExactly(Set.of());
+	}
+
+	@Test
+	void rethrowsWhenNoWriteIsKnownToHaveFailed() {
+		when(bulkOps.execute()).thenThrow(bulkFailure());
+
+		assertThatExceptionOfType(BulkOperationException.class)
+				.isThrownBy(() -> service.upsertAll(List.of(records("room-1", 1))));
+	}
+
+	private static BulkWriteError error(int index, int code) {
+		return new BulkWriteError(code, "failed", new BsonDocument(), index);
+	}
+
+	private static BulkOperationException bulkFailure(BulkWriteError... errors) {
+		BulkWriteResult result = BulkWriteResult.acknowledged(0, 0, 0, 0, List.of(), List.of());
+		MongoBulkWriteException cause = new MongoBulkWriteException(result, List.of(errors), null,
+				new ServerAddress(), Set.of());
+		return new BulkOperationException("Bulk write failed", cause);
+	}
+
+}
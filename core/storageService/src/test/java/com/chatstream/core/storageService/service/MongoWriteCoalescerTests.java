@@ -0,0 +1,184 @@
+package com.chatstream.core.storageService.service;
+
+import com.chatstream.core.storageService.metrics.StorageMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MongoWriteCoalescerTests {
+
+	private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+	private final MongoMessageService mongoMessageService = mock(MongoMessageService.class);
+	private final MongoWriteExecutor writeExecutor = new MongoWriteExecutor(1);
+	private final List<List<List<MapRecord<String, String, String>>>> bulks = new ArrayList<>();
+
+	@AfterEach
+	void stopExecutor() {
+		writeExecutor.stop();
+	}
+
+	@Test
+	void answersAnEmptyBatchWithoutWriting() {
+		MongoWriteCoalescer coalescer = coalescer(10, 1_000_000, 10);
+
+		assertThat(coalescer.write("room-1", List.of()).block(TIMEOUT)).isEmpty();
+		verify(mongoMessageService, never()).upsertAll(any());
+	}
+
+	@Test
+	void combinesBatchesArrivingWithinTheLinger() {
+		succeedAll();
+		MongoWriteCoalescer coalescer = coalescer(100, 1_000_000, 200);
+
+		Mono<Set<RecordId>> first = coalescer.write("room-1", records("room-1", 2)).cache();
+		Mono<Set<RecordId>> second = coalescer.write("room-2", records("room-2", 3)).cache();
+		first.subscribe();
+		second.subscribe();
+
+		assertThat(first.block(TIMEOUT)).isEmpty();
+		assertThat(second.block(TIMEOUT)).isEmpty();
+		assertThat(bulks).hasSize(1);
+		assertThat(bulks.get(0)).extracting(List::size).containsExactly(2, 3);
+	}
+
+	@Test
+	void writesAtOnceWhenTheDocumentCapIsReached() {
+		succeedAll();
+		MongoWriteCoalescer coalescer = coalescer(4, 1_000_000, 60_000);
+
+		Mono<Set<RecordId>> first = coalescer.write("room-1", records("room-1", 2)).cache();
+		first.subscribe();
+		Mono<Set<RecordId>> second = coalescer.write("room-2", records("room-2", 2)).cache();
+
+		assertThat(second.block(TIMEOUT)).isEmpty();
+		assertThat(first.block(TIMEOUT)).isEmpty();
+	}
+
+	@Test
+	void neverSplitsABatchAndStartsANewBulkPastTheCap() {
+		succeedAll();
+		MongoWriteCoalescer coalescer = coalescer(3, 1_000_000, 200);
+
+		Mono<Set<RecordId>> first = coalescer.write("room-1", records("room-1", 2)).cache();
+		Mono<Set<RecordId>> second = coalescer.write("room-2", records("room-2", 5)).cache();
+		first.subscribe();
+		second.subscribe();
+
+		first.block(TIMEOUT);
+		second.block(TIMEOUT);
+		assertThat(bulks).extracting(bulk -> bulk.stream().map(List::size).toList())
+				.containsExactly(List.of(2), List.of(5));
+	}
+
+	@Test
+	void appliesTheByteCapLikeTheDocumentCap() {
+		succeedAll();
+		List<MapRecord<String, String, String>> large = records("room-1", 1);
+		long bytes = MongoMessageService.sizeOf(large.get(0));
+		MongoWriteCoalescer coalescer = coalescer(100, bytes, 200);
+
+		Mono<Set<RecordId>> first = coalescer.write("room-1", large).cache();
+		Mono<Set<RecordId>> second = coalescer.write("room-2", records("room-2", 1)).cache();
+		first.subscribe();
+		second.subscribe();
+
+		first.block(TIMEOUT);
+		second.block(TIMEOUT);
+		assertThat(bulks).hasSize(2);
+	}
+
+	@Test
+	void answersEachBatchWithItsOwnFailedIds() {
+		List<MapRecord<String, String, String>> firstRecords = records("room-1", 2);
+		List<MapRecord<String, String, String>> secondRecords = records("room-2", 2);
+		RecordId failedId = secondRecords.get(1).getId();
+		when(mongoMessageService.upsertAll(any())).thenAnswer(call -> {
+			List<List<MapRecord<String, String, String>>> batches = call.getArgument(0);
+			bulks.add(batches);
+			return batches.stream()
+					.map(batch -> batch == secondRecords ? Set.of(failedId) : Set.<RecordId>of())
+					.toList();
+		});
+		MongoWriteCoalescer coalescer = coalescer(100, 1_000_000, 200);
+
+		Mono<Set<RecordId>> first = coalescer.write("room-1", firstRecords).cache();
+		Mono<Set<RecordId>> second = coalescer.write("room-2", secondRecords).cache();
+		first.subscribe();
+		second.subscribe();
+
+		assertThat(first.block(TIMEOUT)).isEmpty();
+		assertThat(second.block(TIMEOUT)).containsExactly(failedId);
+		assertThat(bulks).hasSize(1);
+	}
+
+	@Test
+	void failsEveryBatchOfAFailedBulk() {
+		when(mongoMessageService.upsertAll(any())).thenThrow(new IllegalStateException("MongoDB down"));
+		MongoWriteCoalescer coalescer = coalescer(100, 1_000_000, 200);
+
+		Mono<Set<RecordId>> first = coalescer.write("room-1", records("room-1", 1)).cache();
+		Mono<Set<RecordId>> second = coalescer.write("room-2", records("room-2", 1)).cache();
+		first.subscribe(ignored -> { }, ignored -> { });
+		second.subscribe(ignored -> { }, ignored -> { });
+
+		assertThatIllegalStateException().isThrownBy(() -> first.block(TIMEOUT));
+		assertThatIllegalStateException().isThrownBy(() -> second.block(TIMEOUT));
+	}
+
+	@Test
+	void mapsStreamsOntoLanesStably() {
+		assertThat(MongoWriteCoalescer.laneOf("room-1", 4)).isEqualTo(MongoWriteCoalescer.laneOf("room-1", 4))
+				.isBetween(0, 3);
+		// Its hash code is Integer.MIN_VALUE
+		assertThat(MongoWriteCoalescer.laneOf("polygenelubricants", 4)).isBetween(0, 3);
+	}
+
+	private void succeedAll() {
+		when(mongoMessageService.upsertAll(any())).thenAnswer(call -> {
+			List<List<MapRecord<String, String, String>>> batches = call.getArgument(0);
+			bulks.add(batches);
+			return batches.stream().map(batch -> Set.<RecordId>of()).toList();
+		});
+	}
+
+	// A single lane, so every stream shares it
+	private MongoWriteCoalescer coalescer(int maxDocuments, long maxBytes, long lingerMs) {
+		MongoWriteCoalescer coalescer = new MongoWriteCoalescer(mongoMessageService, writeExecutor,
+				new StorageMetrics(new SimpleMeterRegistry()), 1);
+		ReflectionTestUtils.setField(coalescer, "maxDocuments", maxDocuments);
+		ReflectionTestUtils.setField(coalescer, "maxBytes", maxBytes);
+		ReflectionTestUtils.setField(coalescer, "lingerMs", lingerMs);
+		return coalescer;
+	}
+
+	static List<MapRecord<String, String, String>> records(String stream, int count) {
+		List<MapRecord<String, String, String>> records = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			records.add(StreamRecords.<String, String, String>mapBacked(Map.of("payload", "message " + i))
+					.withStreamKey(stream)
+					.withId(RecordId.of(1_700_000_000_000L, i)));
+		}
+		return records;
+	}
+
+}